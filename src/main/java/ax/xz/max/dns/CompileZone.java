@@ -0,0 +1,27 @@
+package ax.xz.max.dns;
+
+import ax.xz.max.dns.repository.SQLResourceRepository;
+import ax.xz.max.dns.repository.ZoneImage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Compiles the records in a database into a zone image.
+ * <p>
+ * Usage: {@code CompileZone [database url] [image file]},
+ * which default to {@code jdbc:sqlite:records.db} and {@code records.zone}.
+ */
+public class CompileZone {
+	public static void main(String[] args) throws InterruptedException, IOException {
+		String url = args.length > 0 ? args[0] : "jdbc:sqlite:records.db";
+		Path file = Path.of(args.length > 1 ? args[1] : "records.zone");
+
+		try (SQLResourceRepository repository = SQLResourceRepository.of(url)) {
+			long start = System.nanoTime();
+			var records = repository.getAll();
+			ZoneImage.compile(records, file);
+			System.out.println("Compiled " + records.size() + " records into " + file + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+		}
+	}
+}
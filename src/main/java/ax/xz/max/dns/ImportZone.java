@@ -0,0 +1,35 @@
+package ax.xz.max.dns;
+
+import ax.xz.max.dns.repository.SQLResourceRepository;
+import ax.xz.max.dns.repository.ZoneFileLoader;
+import ax.xz.max.dns.resource.DomainName;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Imports a master file into a database, printing progress as it goes.
+ * <p>
+ * Usage: {@code ImportZone <zone file> <origin> [database url]}, where the database defaults to {@code jdbc:sqlite:records.db}.
+ */
+public class ImportZone {
+	public static void main(String[] args) throws InterruptedException, IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: ImportZone <zone file> <origin> [database url]");
+			System.exit(1);
+		}
+
+		var file = Path.of(args[0]);
+		var origin = new DomainName(args[1]);
+		String url = args.length > 2 ? args[2] : "jdbc:sqlite:records.db";
+
+		try (SQLResourceRepository repository = SQLResourceRepository.of(url)) {
+			var loader = new ZoneFileLoader(repository, ForkJoinPool.commonPool(), 10_000, progress ->
+					System.out.printf("%d records, %d skipped, %d lines, %.0f records/s%n", progress.records(), progress.skipped(), progress.lines(), progress.recordsPerSecond()));
+
+			var result = loader.load(file, origin);
+			System.out.printf("Imported %d records from %s in %d ms (%d skipped)%n", result.records(), file, result.elapsedNanos() / 1_000_000, result.skipped());
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package ax.xz.max.dns;
+
+import ax.xz.max.dns.resource.*;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares {@link MessageDecoder} against parsing a message record by record, as {@link DNSMessage#parseMessage} used to.
+ * <p>
+ * Both parsers decode a plain query and a compressed response holding a few dozen records,
+ * after a warmup, and the average time per message is printed.
+ * The per-record parser can't follow pointers in record data, so the response only holds address records.
+ */
+public class ParserBenchmark {
+	private static final int WARMUP = 200_000;
+	private static final int ITERATIONS = 1_000_000;
+
+	private static volatile Object sink;
+
+	public static void main(String[] args) {
+		var query = new DNSMessage(
+				new DNSHeader((short) 1, false, (byte) 0, false, false, true, false, (byte) 0, (short) 1, (short) 0, (short) 0, (short) 1),
+				List.of(new DNSQuery(new DomainName("www.example.com"), ARecord.ID, (short) 1)),
+				List.of(), List.of(),
+				List.of(new OPTRecord(1232, (byte) 0, (byte) 0, false, List.of()))
+		);
+
+		var answers = new ArrayList<ResourceRecord>();
+		for (int i = 0; i < 16; i++) {
+			answers.add(new ARecord(new DomainName("www.example.com"), 300, Inet4Address.ofLiteral("192.0.2." + i)));
+			answers.add(new AAAARecord(new DomainName("www.example.com"), 300, Inet6Address.ofLiteral("2001:db8::" + Integer.toHexString(i))));
+		}
+		var response = new DNSMessage(
+				query.header().asMinimalAnswer((short) answers.size(), (short) 0, (short) 1),
+				query.queries(), answers, List.of(), query.additional()
+		);
+
+		try (var arena = Arena.ofConfined()) {
+			run("query", query.toMemorySegment(arena));
+			run("response", response.toMemorySegment(arena));
+		}
+	}
+
+	private static void run(String name, MemorySegment message) {
+		for (int i = 0; i < WARMUP; i++) {
+			sink = parsePerRecord(message);
+			sink = MessageDecoder.decode(message);
+		}
+
+		long perRecord = time(message, true);
+		long decoder = time(message, false);
+		System.out.println(name + " (" + message.byteSize() + " bytes): per record " + perRecord + " ns/op, decoder " + decoder + " ns/op");
+	}
+
+	private static long time(MemorySegment message, boolean perRecord) {
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++)
+			sink = perRecord ? parsePerRecord(message) : MessageDecoder.decode(message);
+		return (System.nanoTime() - start) / ITERATIONS;
+	}
+
+	/**
+	 * Slices the message at every record and parses each name on its own, following pointers afresh every time.
+	 */
+	private static DNSMessage parsePerRecord(MemorySegment data) {
+		var header = DNSHeader.fromData(data);
+		int offset = header.byteSize();
+
+		var queries = new ArrayList<DNSQuery>();
+		for (int i = 0; i < header.numQuestions(); i++) {
+			var query = DNSQuery.fromData(data.asSlice(offset), data);
+			offset += query.bytesParsed();
+			queries.add(query.query());
+		}
+
+		var answers = new ArrayList<ResourceRecord>();
+		var authorities = new ArrayList<ResourceRecord>();
+		var additional = new ArrayList<ResourceRecord>();
+		offset = parseRecords(data, offset, header.numAnswers(), answers);
+		offset = parseRecords(data, offset, header.numNS(), authorities);
+		parseRecords(data, offset, header.numAdditional(), additional);
+
+		return new DNSMessage(header, queries, answers, authorities, additional);
+	}
+
+	private static int parseRecords(MemorySegment data, int offset, short count, List<ResourceRecord> records) {
+		for (int i = 0; i < Short.toUnsignedInt(count); i++) {
+			var parsed = ResourceRecord.parseOrSkip(data.asSlice(offset), data);
+			offset += parsed.bytesParsed();
+			if (parsed.record() != null)
+				records.add(parsed.record());
+		}
+		return offset;
+	}
+}
@@ -5,6 +5,8 @@ import ax.xz.max.dns.repository.FilteredResourceRepository;
 import ax.xz.max.dns.repository.SQLResourceRepository;
 import ax.xz.max.dns.resource.*;
 import ax.xz.max.dns.server.DNSServer;
+import ax.xz.max.dns.server.MetricsEndpoint;
+import ax.xz.max.dns.server.ServerConfiguration;
 import org.sqlite.SQLiteDataSource;
 
 import javax.sql.DataSource;
@@ -13,10 +15,12 @@ import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.List;
 import java.util.Set;
 
 public class Server {
-	public static void main(String[] args) throws InterruptedException {
+	public static void main(String[] args) throws InterruptedException, IOException {
 		try (
 				SQLResourceRepository repository = SQLResourceRepository.of("jdbc:sqlite:records.db");
 				CachingResourceRepository cachingRepository = CachingResourceRepository.of(repository);
@@ -60,19 +64,39 @@ public class Server {
 					(Inet6Address) Inet6Address.ofLiteral("2a01:4f9:6b:15ce::2")
 			);
 
-			controller.insert(com);
-			controller.insert(com6);
-			controller.insert(www);
-			controller.insert(ns);
-			controller.insert(ns4);
-			controller.insert(ns6);
+			controller.insertAll(List.of(com, com6, www, ns, ns4, ns6));
 
 			var localAddresses = Set.of(
 					new InetSocketAddress(InetAddress.ofLiteral("65.108.126.123"), 53),
 					new InetSocketAddress(InetAddress.ofLiteral("2a01:4f9:6b:15ce::2"), 53)
 			);
 
-			try (var server = new DNSServer(controller, Thread.ofVirtual().factory(), localAddresses)) {
+			var configuration = ServerConfiguration.builder()
+					.udpShards(Runtime.getRuntime().availableProcessors())
+					.shardReportInterval(Duration.ofMinutes(1))
+					.metricsReportInterval(Duration.ofMinutes(1))
+					.build();
+
+			try (
+					var server = new DNSServer(controller, Thread.ofVirtual().factory(), localAddresses, configuration);
+					var metrics = MetricsEndpoint.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 9153))
+			) {
+				metrics.register(server::writeMetrics)
+						.register(writer -> {
+							writer.counter("dns_repository_cache_hits_total", "Lookups answered by the repository cache", cachingRepository.hits());
+							writer.counter("dns_repository_cache_misses_total", "Lookups passed through the repository cache", cachingRepository.misses());
+
+							writer.counter("dns_filter_lookups_total", "Lookups checked against the name filter", controller.lookups());
+							writer.counter("dns_filter_short_circuits_total", "Lookups answered as empty by the name filter", controller.shortCircuits());
+							writer.gauge("dns_filter_false_positive_rate", "Estimated false positive rate of the name filter", controller.falsePositiveRate());
+
+							var pool = repository.connectionPoolStatistics();
+							writer.gauge("dns_connection_pool_size", "Open database connections", pool.size());
+							writer.gauge("dns_connection_pool_in_use", "Database connections currently acquired", pool.inUse());
+							writer.counter("dns_connection_pool_acquisitions_total", "Database connections acquired", pool.acquisitions());
+							writer.counter("dns_connection_pool_acquire_wait_seconds_total", "Time spent acquiring database connections", pool.acquireWaitNanos() / 1e9);
+						});
+
 				Thread.sleep(Long.MAX_VALUE);
 			}
 		}
@@ -1,13 +1,25 @@
 package ax.xz.max.dns.repository;
 
+import ax.xz.max.dns.resource.CNameRecord;
 import ax.xz.max.dns.resource.DomainName;
 import ax.xz.max.dns.resource.ResourceRecord;
 
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 public class CachingResourceRepository implements ResourceRepository {
 	private final ResourceRepository delegate;
 	private volatile boolean isClosed = false;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	// the entries invalidated by each write in progress through this cache, by the thread making it
+	private final Map<Thread, Invalidation> writesInFlight = new ConcurrentHashMap<>();
 
 	public CachingResourceRepository(ResourceRepository delegate, int cacheSize) {
 		this.delegate = delegate;
@@ -33,6 +45,16 @@ public class CachingResourceRepository implements ResourceRepository {
 		chainCache.clear();
 	}
 
+	/** Lookups answered from the cache, counting both record and chain lookups */
+	public long hits() {
+		return hits.sum();
+	}
+
+	/** Lookups passed on to the delegate, counting both record and chain lookups */
+	public long misses() {
+		return misses.sum();
+	}
+
 	// cached
 	private record CacheKey(DomainName name, short type) {}
 	private final LimitedCache<CacheKey, List<ResourceRecord>> cache;
@@ -43,8 +65,11 @@ public class CachingResourceRepository implements ResourceRepository {
 		var key = new CacheKey(name, type);
 		var result = cache.get(key);
 		if (result == null) {
+			misses.increment();
 			result = delegate.getAllByNameAndType(name, type);
 			cache.put(key, result);
+		} else {
+			hits.increment();
 		}
 		return result;
 	}
@@ -55,8 +80,11 @@ public class CachingResourceRepository implements ResourceRepository {
 		var key = new CacheKey(name, type);
 		var result = chainCache.get(key);
 		if (result == null) {
+			misses.increment();
 			result = delegate.getAllChainsByNameAndType(name, type);
 			chainCache.put(key, result);
+		} else {
+			hits.increment();
 		}
 		return result;
 	}
@@ -74,24 +102,103 @@ public class CachingResourceRepository implements ResourceRepository {
 
 	@Override
 	public void insert(ResourceRecord record) throws ResourceAccessException, InterruptedException {
-		throwIfClosed();
-		try {
+		write(List.of(new Change.Insert(record)), () -> {
 			delegate.insert(record);
-		} finally {
-			flushCache();
-		}
+			return null;
+		});
 	}
 
 	@Override
-	public List<ResourceRecord> delete(ResourceRecord record) throws ResourceAccessException, InterruptedException {
+	public void insertAll(Collection<? extends ResourceRecord> records) throws ResourceAccessException, InterruptedException {
+		write(records.stream().map(Change.Insert::new).toList(), () -> {
+			delegate.insertAll(records);
+			return null;
+		});
+	}
+
+	@Override
+	public List<ResourceRecord> applyChanges(List<? extends Change> changes) throws ResourceAccessException, InterruptedException {
+		return write(changes, () -> delegate.applyChanges(changes));
+	}
+
+	@FunctionalInterface
+	private interface DelegateWrite<T> {
+		T apply() throws ResourceAccessException, InterruptedException;
+	}
+
+	/**
+	 * Makes a write to the delegate, then drops only the entries it could have changed,
+	 * rather than flushing the whole cache.
+	 */
+	private <T> T write(List<? extends Change> changes, DelegateWrite<T> write) throws ResourceAccessException, InterruptedException {
 		throwIfClosed();
+		var invalidation = Invalidation.of(changes);
+		writesInFlight.put(Thread.currentThread(), invalidation);
 		try {
-			return delegate.delete(record);
+			return write.apply();
 		} finally {
-			flushCache();
+			writesInFlight.remove(Thread.currentThread());
+			invalidate(invalidation);
 		}
 	}
 
+	/**
+	 * The entries a batch of changes could have made stale.
+	 * <p>
+	 * Record entries are dropped for exactly the names and types changed.
+	 * A chain depends on the aliases at its name and on records at the names they point to, which the cache doesn't know,
+	 * so chains are dropped by name where aliases changed, and by type wherever records of that type changed.
+	 */
+	private record Invalidation(Set<CacheKey> keys, Set<DomainName> names, Set<Short> types, Set<DomainName> chainNames, Set<Short> chainTypes, boolean allChains) {
+		static Invalidation of(List<? extends Change> changes) {
+			var keys = new HashSet<CacheKey>();
+			var names = new HashSet<DomainName>();
+			var types = new HashSet<Short>();
+			boolean allChains = false;
+
+			for (var change : changes) {
+				switch (change) {
+					case Change.Insert(var record) -> keys.add(new CacheKey(record.name(), record.type()));
+					case Change.Delete(var record) -> keys.add(new CacheKey(record.name(), record.type()));
+					case Change.DeleteAllByName(var name) -> {
+						names.add(name);
+						allChains = true; // the name may be the target of any alias, for any type
+					}
+					case Change.DeleteAllByNameAndType(var name, var type) -> keys.add(new CacheKey(name, type));
+					case Change.DeleteAllByType(var type) -> types.add(type);
+				}
+			}
+
+			var chainNames = new HashSet<DomainName>();
+			var chainTypes = new HashSet<>(types);
+			for (var key : keys) {
+				if (key.type() == CNameRecord.ID) chainNames.add(key.name());
+				else chainTypes.add(key.type());
+			}
+			allChains |= types.contains(CNameRecord.ID);
+
+			return new Invalidation(keys, names, types, chainNames, chainTypes, allChains);
+		}
+
+		boolean invalidatesRecords(CacheKey key) {
+			return keys.contains(key) || names.contains(key.name()) || types.contains(key.type());
+		}
+
+		boolean invalidatesChains(CacheKey key) {
+			return allChains || chainNames.contains(key.name()) || chainTypes.contains(key.type());
+		}
+	}
+
+	private void invalidate(Invalidation invalidation) {
+		cache.removeIf(invalidation::invalidatesRecords);
+		chainCache.removeIf(invalidation::invalidatesChains);
+	}
+
+	@Override
+	public List<ResourceRecord> delete(ResourceRecord record) throws ResourceAccessException, InterruptedException {
+		return write(List.of(new Change.Delete(record)), () -> delegate.delete(record));
+	}
+
 	@Override
 	public List<ResourceRecord> getAll() throws ResourceAccessException, InterruptedException {
 		throwIfClosed();
@@ -112,22 +219,12 @@ public class CachingResourceRepository implements ResourceRepository {
 
 	@Override
 	public List<ResourceRecord> deleteAllByName(DomainName name) throws ResourceAccessException, InterruptedException {
-		throwIfClosed();
-		try {
-			return delegate.deleteAllByName(name);
-		} finally {
-			flushCache();
-		}
+		return write(List.of(new Change.DeleteAllByName(name)), () -> delegate.deleteAllByName(name));
 	}
 
 	@Override
 	public List<ResourceRecord> deleteAllByNameAndType(DomainName name, short type) throws ResourceAccessException, InterruptedException {
-		throwIfClosed();
-		try {
-			return delegate.deleteAllByNameAndType(name, type);
-		} finally {
-			flushCache();
-		}
+		return write(List.of(new Change.DeleteAllByNameAndType(name, type)), () -> delegate.deleteAllByNameAndType(name, type));
 	}
 
 	@Override
@@ -138,12 +235,22 @@ public class CachingResourceRepository implements ResourceRepository {
 
 	@Override
 	public List<ResourceRecord> deleteAllByType(short type) throws ResourceAccessException, InterruptedException {
-		throwIfClosed();
-		try {
-			return delegate.deleteAllByType(type);
-		} finally {
-			flushCache();
-		}
+		return write(List.of(new Change.DeleteAllByType(type)), () -> delegate.deleteAllByType(type));
+	}
+
+	@Override
+	public void addWriteListener(WriteListener listener) {
+		// invalidate first, so that the listener never reads stale entries from this cache
+		delegate.addWriteListener(() -> {
+			var invalidation = writesInFlight.get(Thread.currentThread());
+			if (invalidation != null) {
+				invalidate(invalidation);
+			} else { // a write made to the delegate directly, which could have changed anything
+				cache.clear();
+				chainCache.clear();
+			}
+			listener.onWrite();
+		});
 	}
 
 	@Override
@@ -3,7 +3,9 @@ package ax.xz.max.dns.repository;
 import ax.xz.max.dns.resource.DomainName;
 import ax.xz.max.dns.resource.ResourceRecord;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class FilteredResourceRepository implements ResourceRepository {
@@ -14,6 +16,10 @@ public class FilteredResourceRepository implements ResourceRepository {
 	private final ReentrantReadWriteLock.WriteLock writeLock = readWriteLock.writeLock();
 	private BloomFilter<DomainName> nameFilter;
 
+	private final LongAdder lookups = new LongAdder();
+	private final LongAdder shortCircuits = new LongAdder();
+	private volatile double falsePositiveRate; // only updated on writes, so it can be read without locking
+
 	private static final double STARTING_ERROR_RATE = 0.000_001;
 	private static final double MINIMUM_ERROR_RATE = 0.000_01;
 
@@ -33,17 +39,42 @@ public class FilteredResourceRepository implements ResourceRepository {
 			List<DomainName> names = delegate.getAllDomainNames();
 			nameFilter = BloomFilter.optimalFilterFor(names.size(), STARTING_ERROR_RATE);
 			names.forEach(nameFilter::add);
+			falsePositiveRate = nameFilter.falsePositiveRate();
 		} finally {
 			writeLock.unlock();
 		}
 	}
 
+	/** Must be called with the read lock held */
+	private boolean neverContains(DomainName name) {
+		lookups.increment();
+		if (!nameFilter.neverContains(name)) return false;
+
+		shortCircuits.increment();
+		return true;
+	}
+
+	/** Lookups checked against the filter */
+	public long lookups() {
+		return lookups.sum();
+	}
+
+	/** Lookups answered as empty without consulting the delegate */
+	public long shortCircuits() {
+		return shortCircuits.sum();
+	}
+
+	/** The filter's current estimated false positive rate, as of the last write */
+	public double falsePositiveRate() {
+		return falsePositiveRate;
+	}
+
 	@Override
 	public List<ResourceRecord> getAllByNameAndType(DomainName name, short type) throws ResourceAccessException, InterruptedException {
 		throwIfClosed();
 		readLock.lock();
 		try {
-			if (nameFilter.neverContains(name))
+			if (neverContains(name))
 				return List.of();
 			else
 				return delegate.getAllByNameAndType(name, type);
@@ -57,7 +88,7 @@ public class FilteredResourceRepository implements ResourceRepository {
 		throwIfClosed();
 		readLock.lock();
 		try {
-			if (nameFilter.neverContains(name))
+			if (neverContains(name))
 				return List.of();
 			else
 				return delegate.getAllChainsByNameAndType(name, type);
@@ -74,6 +105,7 @@ public class FilteredResourceRepository implements ResourceRepository {
 		try {
 			delegate.clear();
 			nameFilter.clear();
+			falsePositiveRate = 0;
 		} finally {
 			writeLock.unlock();
 		}
@@ -86,6 +118,44 @@ public class FilteredResourceRepository implements ResourceRepository {
 		try {
 			delegate.insert(record);
 			nameFilter.add(record.name());
+			falsePositiveRate = nameFilter.falsePositiveRate();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void insertAll(Collection<? extends ResourceRecord> records) throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		writeLock.lock();
+		try {
+			delegate.insertAll(records);
+			for (var record : records)
+				nameFilter.add(record.name());
+			falsePositiveRate = nameFilter.falsePositiveRate();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Applies the changes, then updates the filter once, without reading every name back:
+	 * inserted names are added, and deleted ones are left in, since they only cost a lookup in the delegate.
+	 * The filter is only rebuilt once it has filled up past {@link #MINIMUM_ERROR_RATE}.
+	 */
+	@Override
+	public List<ResourceRecord> applyChanges(List<? extends Change> changes) throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		writeLock.lock();
+		try {
+			var result = delegate.applyChanges(changes);
+			for (var change : changes)
+				if (change instanceof Change.Insert(var record))
+					nameFilter.add(record.name());
+
+			falsePositiveRate = nameFilter.falsePositiveRate();
+			if (falsePositiveRate > MINIMUM_ERROR_RATE) resetFilter();
+			return result;
 		} finally {
 			writeLock.unlock();
 		}
@@ -131,7 +201,7 @@ public class FilteredResourceRepository implements ResourceRepository {
 		throwIfClosed();
 		readLock.lock();
 		try {
-			if (nameFilter.neverContains(name))
+			if (neverContains(name))
 				return List.of();
 			else
 				return delegate.getAllByName(name);
@@ -180,7 +250,7 @@ public class FilteredResourceRepository implements ResourceRepository {
 	@Override
 	public List<ResourceRecord> deleteAllByType(short type) throws ResourceAccessException, InterruptedException {
 		throwIfClosed();
-		writeLock.unlock();
+		writeLock.lock();
 		try {
 			var result = delegate.deleteAllByType(type);
 			resetFilter(); // not strictly necessary, but helpful
@@ -190,6 +260,11 @@ public class FilteredResourceRepository implements ResourceRepository {
 		}
 	}
 
+	@Override
+	public void addWriteListener(WriteListener listener) {
+		delegate.addWriteListener(listener);
+	}
+
 	@Override
 	public void close() throws ResourceAccessException {
 		isClosed = true;
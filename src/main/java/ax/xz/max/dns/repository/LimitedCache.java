@@ -2,6 +2,7 @@ package ax.xz.max.dns.repository;
 
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.function.Predicate;
 
 class LimitedCache<K, V> {
 	private final int maxEntries;
@@ -43,6 +44,11 @@ class LimitedCache<K, V> {
 		return result;
 	}
 
+	public void removeIf(Predicate<? super K> filter) {
+		data.keySet().removeIf(filter);
+		lastAdded.removeIf(filter);
+	}
+
 	public void clear() {
 		lastAdded.clear();
 		data.clear(); // shouldn't cause memory leaks
@@ -0,0 +1,267 @@
+package ax.xz.max.dns.repository;
+
+import ax.xz.max.dns.resource.CNameRecord;
+import ax.xz.max.dns.resource.DomainName;
+import ax.xz.max.dns.resource.ResourceRecord;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static ax.xz.max.dns.repository.ZoneImage.*;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Answers lookups straight from a {@linkplain ZoneImage zone image} mapped into memory.
+ * <p>
+ * Opening an image only maps it and checks its header, so it takes the same time whatever the size of the zone,
+ * and the image stays outside the heap, paged in by the operating system as names are looked up.
+ * Only the records a lookup returns are allocated.
+ * <p>
+ * Images are immutable, so every write throws a {@link ResourceAccessException},
+ * and write listeners are never called; to change the zone, compile a new image and open that.
+ */
+public class MappedResourceRepository implements ResourceRepository {
+	private static final int ANY_TYPE = Integer.MIN_VALUE; // no short widens to it
+
+	private final Arena arena;
+	private final MemorySegment image;
+	private final int nameCount;
+	private final int slotCount;
+	private final long slotsOffset;
+	private final long namesOffset;
+
+	private final AtomicBoolean isClosed = new AtomicBoolean(false);
+
+	private MappedResourceRepository(Arena arena, MemorySegment image) throws IOException {
+		this.arena = arena;
+		this.image = image;
+
+		if (image.byteSize() < HEADER_SIZE || image.get(NETWORK_INT, 0) != MAGIC)
+			throw new IOException("Not a zone image");
+		if (image.get(NETWORK_SHORT, 4) != VERSION)
+			throw new IOException("Unsupported zone image version: " + image.get(NETWORK_SHORT, 4));
+
+		nameCount = image.get(NETWORK_INT, 8);
+		slotCount = image.get(NETWORK_INT, 12);
+		slotsOffset = image.get(NETWORK_LONG, 16);
+		namesOffset = image.get(NETWORK_LONG, 24);
+		if (Integer.bitCount(slotCount) != 1 || nameCount < 0 || (long) nameCount * 2 > slotCount
+				|| slotsOffset + (long) slotCount * SLOT_SIZE > namesOffset || namesOffset > image.byteSize())
+			throw new IOException("Corrupt zone image header");
+	}
+
+	/**
+	 * Maps an image read-only, for as long as the repository is open.
+	 */
+	public static MappedResourceRepository of(Path file) throws IOException {
+		var arena = Arena.ofShared();
+		try (var channel = FileChannel.open(file, READ)) {
+			return new MappedResourceRepository(arena, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena));
+		} catch (IOException | RuntimeException e) {
+			arena.close();
+			throw e;
+		}
+	}
+
+	private void throwIfClosed() throws ResourceAccessException {
+		if (isClosed.get()) throw new ResourceAccessException("Repository is closed");
+	}
+
+	/**
+	 * @return the offset of the name's entry, or -1 if the image doesn't hold it
+	 */
+	private long find(DomainName name) {
+		int hash = name.hashCode();
+		byte[] bytes = name.bytes();
+		var key = MemorySegment.ofArray(bytes);
+
+		int slot = slotOf(hash, slotCount);
+		for (int probes = 0; probes < slotCount; probes++, slot = (slot + 1) & (slotCount - 1)) {
+			long slotOffset = slotsOffset + (long) slot * SLOT_SIZE;
+			long entry = image.get(NETWORK_LONG, slotOffset + 4);
+			if (entry == 0) return -1;
+
+			if (image.get(NETWORK_INT, slotOffset) == hash
+					&& Byte.toUnsignedInt(image.get(JAVA_BYTE, entry)) == bytes.length
+					&& MemorySegment.mismatch(image, entry + 1, entry + 1 + bytes.length, key, 0, bytes.length) == -1)
+				return entry;
+		}
+		return -1; // only a corrupt image has no empty slot
+	}
+
+	private DomainName nameAt(long entry) {
+		int length = Byte.toUnsignedInt(image.get(JAVA_BYTE, entry));
+		return DomainName.fromWireFormat(image.asSlice(entry + 1, length).toArray(JAVA_BYTE));
+	}
+
+	/**
+	 * Decodes the records of an entry, or only those of one type.
+	 *
+	 * @param type the type of the records wanted, or {@link #ANY_TYPE}
+	 * @return the offset just past the entry
+	 */
+	private long collect(long entry, DomainName name, int type, List<ResourceRecord> records) {
+		long offset = entry + 1 + Byte.toUnsignedInt(image.get(JAVA_BYTE, entry));
+		int rrsets = Short.toUnsignedInt(image.get(NETWORK_SHORT, offset));
+		offset += 2;
+
+		for (int i = 0; i < rrsets; i++) {
+			short rrsetType = image.get(NETWORK_SHORT, offset);
+			int count = Short.toUnsignedInt(image.get(NETWORK_SHORT, offset + 2));
+			long end = offset + RRSET_HEADER_SIZE + image.get(NETWORK_INT, offset + 4);
+
+			if (type == ANY_TYPE || type == rrsetType) {
+				long record = offset + RRSET_HEADER_SIZE;
+				for (int j = 0; j < count; j++) {
+					int timeToLive = image.get(NETWORK_INT, record);
+					int dataLength = Short.toUnsignedInt(image.get(NETWORK_SHORT, record + 4));
+					var data = image.asSlice(record + RECORD_HEADER_SIZE, dataLength);
+					records.add(ResourceRecord.fromData(name, rrsetType, timeToLive, data));
+					record += RECORD_HEADER_SIZE + dataLength;
+				}
+			}
+			offset = end;
+		}
+		return offset;
+	}
+
+	/**
+	 * @return the offset just past the entry
+	 */
+	private long skip(long entry) {
+		long offset = entry + 1 + Byte.toUnsignedInt(image.get(JAVA_BYTE, entry));
+		int rrsets = Short.toUnsignedInt(image.get(NETWORK_SHORT, offset));
+		offset += 2;
+		for (int i = 0; i < rrsets; i++)
+			offset += RRSET_HEADER_SIZE + image.get(NETWORK_INT, offset + 4);
+		return offset;
+	}
+
+	/**
+	 * Decodes the records of every entry, or only those of one type.
+	 */
+	private List<ResourceRecord> collectAll(int type) {
+		var records = new ArrayList<ResourceRecord>();
+		long entry = namesOffset;
+		for (int i = 0; i < nameCount; i++)
+			entry = collect(entry, nameAt(entry), type, records);
+		return records;
+	}
+
+	@Override
+	public List<ResourceRecord> getAllByNameAndType(DomainName name, short type) throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		long entry = find(name);
+		if (entry < 0) return List.of();
+
+		var records = new ArrayList<ResourceRecord>();
+		collect(entry, name, type, records);
+		return records;
+	}
+
+	@Override
+	public List<AliasChain> getAllChainsByNameAndType(DomainName name, short type) throws ResourceAccessException, InterruptedException {
+		var chains = new ArrayList<AliasChain>();
+		for (var alias : getAllByNameAndType(name, CNameRecord.ID))
+			for (var record : getAllByNameAndType(((CNameRecord) alias).alias(), type))
+				chains.add(new AliasChain((CNameRecord) alias, record));
+		return chains;
+	}
+
+	@Override
+	public List<ResourceRecord> getAll() throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		return collectAll(ANY_TYPE);
+	}
+
+	@Override
+	public List<DomainName> getAllDomainNames() throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		var names = new ArrayList<DomainName>(nameCount);
+		long entry = namesOffset;
+		for (int i = 0; i < nameCount; i++) {
+			names.add(nameAt(entry));
+			entry = skip(entry);
+		}
+		return names;
+	}
+
+	@Override
+	public List<ResourceRecord> getAllByName(DomainName name) throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		long entry = find(name);
+		if (entry < 0) return List.of();
+
+		var records = new ArrayList<ResourceRecord>();
+		collect(entry, name, ANY_TYPE, records);
+		return records;
+	}
+
+	@Override
+	public List<ResourceRecord> getAllByType(short type) throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		return collectAll(type);
+	}
+
+	@Override
+	public void clear() throws ResourceAccessException {
+		throw new ResourceAccessException("Zone images are read-only");
+	}
+
+	@Override
+	public void insert(ResourceRecord record) throws ResourceAccessException {
+		throw new ResourceAccessException("Zone images are read-only");
+	}
+
+	@Override
+	public void insertAll(Collection<? extends ResourceRecord> records) throws ResourceAccessException {
+		throw new ResourceAccessException("Zone images are read-only");
+	}
+
+	@Override
+	public List<ResourceRecord> applyChanges(List<? extends Change> changes) throws ResourceAccessException {
+		throw new ResourceAccessException("Zone images are read-only");
+	}
+
+	@Override
+	public List<ResourceRecord> delete(ResourceRecord record) throws ResourceAccessException {
+		throw new ResourceAccessException("Zone images are read-only");
+	}
+
+	@Override
+	public List<ResourceRecord> deleteAllByName(DomainName name) throws ResourceAccessException {
+		throw new ResourceAccessException("Zone images are read-only");
+	}
+
+	@Override
+	public List<ResourceRecord> deleteAllByNameAndType(DomainName name, short type) throws ResourceAccessException {
+		throw new ResourceAccessException("Zone images are read-only");
+	}
+
+	@Override
+	public List<ResourceRecord> deleteAllByType(short type) throws ResourceAccessException {
+		throw new ResourceAccessException("Zone images are read-only");
+	}
+
+	@Override
+	public void addWriteListener(WriteListener listener) {
+		// the image never changes
+	}
+
+	/**
+	 * Unmaps the image. Lookups still running on other threads fail.
+	 */
+	@Override
+	public void close() throws ResourceAccessException {
+		if (isClosed.compareAndSet(false, true))
+			arena.close();
+	}
+}
@@ -4,12 +4,23 @@ import ax.xz.max.dns.resource.CNameRecord;
 import ax.xz.max.dns.resource.DomainName;
 import ax.xz.max.dns.resource.ResourceRecord;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 public interface ResourceRepository extends AutoCloseable {
 	void clear() throws ResourceAccessException, InterruptedException;
 
 	void insert(ResourceRecord record) throws ResourceAccessException, InterruptedException;
+
+	/**
+	 * Inserts many records, which repositories may do as one batch, notifying their listeners once rather than per record.
+	 * By default, the records are inserted one at a time.
+	 */
+	default void insertAll(Collection<? extends ResourceRecord> records) throws ResourceAccessException, InterruptedException {
+		for (var record : records)
+			insert(record);
+	}
 	List<ResourceRecord> delete(ResourceRecord record) throws ResourceAccessException, InterruptedException;
 	List<ResourceRecord> getAll() throws ResourceAccessException, InterruptedException;
 	List<DomainName> getAllDomainNames() throws ResourceAccessException, InterruptedException;
@@ -24,9 +35,52 @@ public interface ResourceRepository extends AutoCloseable {
 	List<ResourceRecord> deleteAllByType(short type) throws ResourceAccessException, InterruptedException;
 	List<AliasChain> getAllChainsByNameAndType(DomainName name, short type) throws ResourceAccessException, InterruptedException;
 
+	/**
+	 * Applies changes in order, as a single write:
+	 * repositories backed by a database apply all of them or none, and listeners are notified once.
+	 * By default, the changes are applied one at a time.
+	 *
+	 * @return the records deleted
+	 */
+	default List<ResourceRecord> applyChanges(List<? extends Change> changes) throws ResourceAccessException, InterruptedException {
+		var deleted = new ArrayList<ResourceRecord>();
+		for (var change : changes) {
+			switch (change) {
+				case Change.Insert(var record) -> insert(record);
+				case Change.Delete(var record) -> deleted.addAll(delete(record));
+				case Change.DeleteAllByName(var name) -> deleted.addAll(deleteAllByName(name));
+				case Change.DeleteAllByNameAndType(var name, var type) -> deleted.addAll(deleteAllByNameAndType(name, type));
+				case Change.DeleteAllByType(var type) -> deleted.addAll(deleteAllByType(type));
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Registers a listener that is called after every write that reaches this repository,
+	 * whether it was made through this repository or directly through one of its delegates.
+	 */
+	void addWriteListener(WriteListener listener);
+
 	@Override
 	void close() throws ResourceAccessException;
 
+	@FunctionalInterface
+	interface WriteListener {
+		void onWrite();
+	}
+
+	/**
+	 * A write in a batch given to {@link #applyChanges}, one for each of the single writes.
+	 */
+	sealed interface Change {
+		record Insert(ResourceRecord record) implements Change {}
+		record Delete(ResourceRecord record) implements Change {}
+		record DeleteAllByName(DomainName name) implements Change {}
+		record DeleteAllByNameAndType(DomainName name, short type) implements Change {}
+		record DeleteAllByType(short type) implements Change {}
+	}
+
 	record AliasChain(CNameRecord aliasRecord, ResourceRecord record) {
 		public AliasChain {
 			if (!aliasRecord.alias().equals(record.name()))
@@ -8,7 +8,9 @@ import javax.sql.DataSource;
 import java.lang.foreign.MemorySegment;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class SQLResourceRepository implements ResourceRepository {
 	private static byte[] data(ResourceRecord record) {
@@ -18,28 +20,45 @@ public class SQLResourceRepository implements ResourceRepository {
 	}
 
 	private final ConnectionPool connectionPool;
+	private final List<WriteListener> writeListeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * @throws ResourceAccessException if the schema can't be brought up to date,
+	 *                                 including when the database was migrated by a newer version
+	 */
 	public SQLResourceRepository(DataSource dataSource) throws ResourceAccessException, InterruptedException {
 		connectionPool = new ConnectionPool(dataSource, 20, 30);
 		try {
 			initialize();
 		} catch (Exception e) {
-			close();
+			try {
+				close();
+			} catch (ResourceAccessException closeFailure) {
+				e.addSuppressed(closeFailure);
+			}
+			throw e;
 		}
 	}
 
+	/**
+	 * Opens a SQLite database, with every connection in WAL mode,
+	 * so that readers never wait for a writer, and commits only wait for the log to be written rather than synced.
+	 * A crash can lose the last commits, but never corrupts the database.
+	 */
 	public static SQLResourceRepository of(String url) throws ResourceAccessException, InterruptedException {
 		SQLiteDataSource dataSource = new SQLiteDataSource();
 		dataSource.setUrl(url);
+		dataSource.setJournalMode("WAL");
+		dataSource.setSynchronous("NORMAL");
+		dataSource.setCacheSize(-16_384); // in KiB when negative, per connection
+		dataSource.setTempStore("MEMORY");
+		dataSource.setBusyTimeout(5_000); // wait for other connections' writes, rather than failing at once
 		return new SQLResourceRepository(dataSource);
 	}
 
 	private void initialize() throws ResourceAccessException, InterruptedException {
-		try (
-				Connection connection = connectionPool.acquireConnection();
-				Statement statement = connection.createStatement();
-		) {
-			statement.setQueryTimeout(30);
-			statement.executeUpdate("CREATE TABLE IF NOT EXISTS records ( id Integer PRIMARY KEY, name Varbinary(255) NOT NULL, type Integer NOT NULL, time_to_live integer NOT NULL, data Varbinary(65535) NOT NULL )");
+		try (Connection connection = connectionPool.acquireConnection()) {
+			SchemaMigrations.migrate(connection);
 		} catch (SQLException e) {
 			throw new ResourceAccessException("Failed to initialize database", e);
 		}
@@ -52,10 +71,11 @@ public class SQLResourceRepository implements ResourceRepository {
 				Statement statement = connection.createStatement();
 		) {
 			statement.setQueryTimeout(30);
-			statement.executeUpdate("DROP TABLE IF EXISTS records");
-			statement.executeUpdate("CREATE TABLE IF NOT EXISTS records ( id Integer PRIMARY KEY, name Varbinary(255) NOT NULL, type Integer NOT NULL, time_to_live integer NOT NULL, data Varbinary(65535) NOT NULL )");
+			statement.executeUpdate("DELETE FROM records"); // keeps the indexes, and lets SQLite truncate the table
 		} catch (SQLException e) {
 			throw new ResourceAccessException("Failed to clear database", e);
+		} finally {
+			notifyWriteListeners();
 		}
 	}
 
@@ -63,15 +83,139 @@ public class SQLResourceRepository implements ResourceRepository {
 	public void insert(ResourceRecord record) throws ResourceAccessException, InterruptedException {
 		try (
 				Connection connection = connectionPool.acquireConnection();
-				PreparedStatement statement = connection.prepareStatement("INSERT INTO records (name, type, time_to_live, data) VALUES (?, ?, ?, ?)");
+				PreparedStatement statement = connection.prepareStatement(INSERT);
 		) {
-			statement.setBytes(1, record.name().bytes());
-			statement.setShort(2, record.type());
-			statement.setInt(3, record.timeToLive());
-			statement.setBytes(4, data(record));
+			bind(statement, record);
 			statement.executeUpdate();
 		} catch (SQLException e) {
 			throw new ResourceAccessException("Failed to insert record", e);
+		} finally {
+			notifyWriteListeners();
+		}
+	}
+
+	/**
+	 * Inserts the records in a single transaction, as one batch of statements.
+	 */
+	@Override
+	public void insertAll(Collection<? extends ResourceRecord> records) throws ResourceAccessException, InterruptedException {
+		try (
+				Connection connection = connectionPool.acquireConnection();
+				PreparedStatement statement = connection.prepareStatement(INSERT);
+		) {
+			connection.setAutoCommit(false);
+			try {
+				for (var record : records) {
+					bind(statement, record);
+					statement.addBatch();
+				}
+				statement.executeBatch();
+				connection.commit();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true); // the connection goes back to the pool
+			}
+		} catch (SQLException e) {
+			throw new ResourceAccessException("Failed to insert records", e);
+		} finally {
+			notifyWriteListeners();
+		}
+	}
+
+	/**
+	 * Applies the changes in a single transaction, sending consecutive inserts as one batch of statements.
+	 */
+	@Override
+	public List<ResourceRecord> applyChanges(List<? extends Change> changes) throws ResourceAccessException, InterruptedException {
+		try (
+				Connection connection = connectionPool.acquireConnection();
+				PreparedStatement insert = connection.prepareStatement(INSERT);
+				PreparedStatement delete = connection.prepareStatement("DELETE FROM records WHERE name = ? AND type = ? AND time_to_live = ? AND data = ? RETURNING *");
+				PreparedStatement deleteByName = connection.prepareStatement("DELETE FROM records WHERE name = ? RETURNING *");
+				PreparedStatement deleteByNameAndType = connection.prepareStatement("DELETE FROM records WHERE name = ? AND type = ? RETURNING *");
+				PreparedStatement deleteByType = connection.prepareStatement("DELETE FROM records WHERE type = ? RETURNING *");
+		) {
+			connection.setAutoCommit(false);
+			try {
+				List<ResourceRecord> deleted = new ArrayList<>();
+				int pendingInserts = 0;
+
+				for (var change : changes) {
+					// a delete must see the inserts before it
+					if (pendingInserts > 0 && !(change instanceof Change.Insert)) {
+						insert.executeBatch();
+						pendingInserts = 0;
+					}
+
+					switch (change) {
+						case Change.Insert(var record) -> {
+							bind(insert, record);
+							insert.addBatch();
+							pendingInserts++;
+						}
+						case Change.Delete(var record) -> {
+							bind(delete, record);
+							deleted.addAll(deleteReturning(delete));
+						}
+						case Change.DeleteAllByName(var name) -> {
+							deleteByName.setBytes(1, name.bytes());
+							deleted.addAll(deleteReturning(deleteByName));
+						}
+						case Change.DeleteAllByNameAndType(var name, var type) -> {
+							deleteByNameAndType.setBytes(1, name.bytes());
+							deleteByNameAndType.setShort(2, type);
+							deleted.addAll(deleteReturning(deleteByNameAndType));
+						}
+						case Change.DeleteAllByType(var type) -> {
+							deleteByType.setShort(1, type);
+							deleted.addAll(deleteReturning(deleteByType));
+						}
+					}
+				}
+				if (pendingInserts > 0) insert.executeBatch();
+
+				connection.commit();
+				return deleted;
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true); // the connection goes back to the pool
+			}
+		} catch (SQLException e) {
+			throw new ResourceAccessException("Failed to apply changes", e);
+		} finally {
+			notifyWriteListeners();
+		}
+	}
+
+	/** Inserts a record, whose values are set with {@link #bind} */
+	private static final String INSERT = "INSERT INTO records (name, type, time_to_live, data) VALUES (?, ?, ?, ?)";
+
+	/** Binds a whole record to the first four parameters, in the order of the columns */
+	private static void bind(PreparedStatement statement, ResourceRecord record) throws SQLException {
+		statement.setBytes(1, record.name().bytes());
+		statement.setShort(2, record.type());
+		statement.setInt(3, record.timeToLive());
+		statement.setBytes(4, data(record));
+	}
+
+	/** Runs a delete returning whole rows, and reads the records it deleted */
+	private static List<ResourceRecord> deleteReturning(PreparedStatement statement) throws SQLException {
+		try (ResultSet resultSet = statement.executeQuery()) {
+			List<ResourceRecord> records = new ArrayList<>();
+
+			while (resultSet.next())
+				records.add(ResourceRecord.fromData(
+						DomainName.fromWireFormat(resultSet.getBytes("name")),
+						resultSet.getShort("type"),
+						resultSet.getInt("time_to_live"),
+						MemorySegment.ofArray(resultSet.getBytes("data"))
+				));
+
+			return records;
 		}
 	}
 
@@ -91,7 +235,7 @@ public class SQLResourceRepository implements ResourceRepository {
 
 				while (resultSet.next())
 					records.add(ResourceRecord.fromData(
-							DomainName.fromData(MemorySegment.ofArray(resultSet.getBytes("name"))).domainName(),
+							DomainName.fromWireFormat(resultSet.getBytes("name")),
 							resultSet.getShort("type"),
 							resultSet.getInt("time_to_live"),
 							MemorySegment.ofArray(resultSet.getBytes("data"))
@@ -101,6 +245,8 @@ public class SQLResourceRepository implements ResourceRepository {
 			}
 		} catch (SQLException e) {
 			throw new ResourceAccessException("Failed to delete record", e);
+		} finally {
+			notifyWriteListeners();
 		}
 	}
 
@@ -127,6 +273,8 @@ public class SQLResourceRepository implements ResourceRepository {
 			}
 		} catch (SQLException e) {
 			throw new ResourceAccessException("Failed to delete record", e);
+		} finally {
+			notifyWriteListeners();
 		}
 	}
 
@@ -154,6 +302,8 @@ public class SQLResourceRepository implements ResourceRepository {
 			}
 		} catch (SQLException e) {
 			throw new ResourceAccessException("Failed to delete record", e);
+		} finally {
+			notifyWriteListeners();
 		}
 	}
 
@@ -170,7 +320,7 @@ public class SQLResourceRepository implements ResourceRepository {
 
 				while (resultSet.next())
 					records.add(ResourceRecord.fromData(
-							DomainName.fromData(MemorySegment.ofArray(resultSet.getBytes("name"))).domainName(),
+							DomainName.fromWireFormat(resultSet.getBytes("name")),
 							type,
 							resultSet.getInt("time_to_live"),
 							MemorySegment.ofArray(resultSet.getBytes("data"))
@@ -196,7 +346,7 @@ public class SQLResourceRepository implements ResourceRepository {
 
 				while (resultSet.next())
 					records.add(ResourceRecord.fromData(
-							DomainName.fromData(MemorySegment.ofArray(resultSet.getBytes("name"))).domainName(),
+							DomainName.fromWireFormat(resultSet.getBytes("name")),
 							type,
 							resultSet.getInt("time_to_live"),
 							MemorySegment.ofArray(resultSet.getBytes("data"))
@@ -206,6 +356,8 @@ public class SQLResourceRepository implements ResourceRepository {
 			}
 		} catch (SQLException e) {
 			throw new ResourceAccessException("Failed to delete record", e);
+		} finally {
+			notifyWriteListeners();
 		}
 	}
 
@@ -220,7 +372,7 @@ public class SQLResourceRepository implements ResourceRepository {
 
 			while (resultSet.next())
 				records.add(ResourceRecord.fromData(
-						DomainName.fromData(MemorySegment.ofArray(resultSet.getBytes("name"))).domainName(),
+						DomainName.fromWireFormat(resultSet.getBytes("name")),
 						resultSet.getShort("type"),
 						resultSet.getInt("time_to_live"),
 						MemorySegment.ofArray(resultSet.getBytes("data"))
@@ -236,18 +388,18 @@ public class SQLResourceRepository implements ResourceRepository {
 	public List<DomainName> getAllDomainNames() throws ResourceAccessException, InterruptedException {
 		try (
 				Connection connection = connectionPool.acquireConnection();
+				// the type is written out, rather than bound, so that the partial index of alias targets can be used
 				PreparedStatement statement = connection.prepareStatement("""
 						SELECT name FROM records
 						UNION
-						SELECT data FROM records WHERE type = ?;""");
+						SELECT data FROM records WHERE type = %d;""".formatted(CNameRecord.ID));
 		) {
-			statement.setShort(1, CNameRecord.ID);
 			try (ResultSet resultSet = statement.executeQuery()) {
 				List<DomainName> records = new ArrayList<>();
 
 				while (resultSet.next())
 					records.add(
-							DomainName.fromData(MemorySegment.ofArray(resultSet.getBytes("name"))).domainName()
+							DomainName.fromWireFormat(resultSet.getBytes("name"))
 					);
 
 				return records;
@@ -314,10 +466,12 @@ public class SQLResourceRepository implements ResourceRepository {
 	public List<AliasChain> getAllChainsByNameAndType(DomainName name, short type) throws ResourceAccessException, InterruptedException {
 		try (
 				Connection connection = connectionPool.acquireConnection();
+				// CROSS JOIN makes SQLite loop over the few aliases and look up each target by name and type,
+				// rather than loop over every record of the type
 				PreparedStatement statement = connection.prepareStatement("""
 						WITH RECURSIVE candidates AS ( SELECT data, time_to_live FROM records WHERE name = ? AND type = ? )
-						SELECT records.name as name, records.time_to_live as time_to_live, records.data as data, candidates.time_to_live as candidate_time_to_live FROM records 
-						CROSS JOIN candidates ON records.name = candidates.data WHERE records.type = ?;""");
+						SELECT records.name as name, records.time_to_live as time_to_live, records.data as data, candidates.time_to_live as candidate_time_to_live FROM candidates
+						CROSS JOIN records ON records.name = candidates.data WHERE records.type = ?;""");
 		) {
 			statement.setBytes(1, name.bytes());
 			statement.setShort(2, CNameRecord.ID);
@@ -328,7 +482,7 @@ public class SQLResourceRepository implements ResourceRepository {
 
 				while (resultSet.next()) {
 					ResourceRecord record = ResourceRecord.fromData(
-							DomainName.fromData(MemorySegment.ofArray(resultSet.getBytes("name"))).domainName(),
+							DomainName.fromWireFormat(resultSet.getBytes("name")),
 							type,
 							resultSet.getInt("time_to_live"),
 							MemorySegment.ofArray(resultSet.getBytes("data"))
@@ -350,6 +504,20 @@ public class SQLResourceRepository implements ResourceRepository {
 		}
 	}
 
+	@Override
+	public void addWriteListener(WriteListener listener) {
+		writeListeners.add(listener);
+	}
+
+	private void notifyWriteListeners() {
+		for (var listener : writeListeners)
+			listener.onWrite();
+	}
+
+	public ConnectionPool.Statistics connectionPoolStatistics() {
+		return connectionPool.statistics();
+	}
+
 	@Override
 	public void close() throws ResourceAccessException {
 		try {
@@ -0,0 +1,75 @@
+package ax.xz.max.dns.repository;
+
+import ax.xz.max.dns.resource.CNameRecord;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Brings a database's schema up to date, one forward migration at a time.
+ * <p>
+ * Each migration's version is recorded in {@code schema_version} once it is applied.
+ * A database from before that table existed is at version 0,
+ * and its {@code records} table is the one the first migration creates, so it carries on from there.
+ * Migrations are never edited once released; changes to the schema go in a new one at the end.
+ */
+final class SchemaMigrations {
+	private static final List<List<String>> MIGRATIONS = List.of(
+			// 1: the original table
+			List.of("CREATE TABLE IF NOT EXISTS records ( id Integer PRIMARY KEY, name Varbinary(255) NOT NULL, type Integer NOT NULL, time_to_live integer NOT NULL, data Varbinary(65535) NOT NULL )"),
+			// 2: indexes for every lookup, so that none of them scans the table
+			List.of(
+					"CREATE INDEX IF NOT EXISTS records_by_name_and_type ON records (name, type)",
+					"CREATE INDEX IF NOT EXISTS records_by_type ON records (type)",
+					"CREATE INDEX IF NOT EXISTS aliases_by_target ON records (data) WHERE type = " + CNameRecord.ID
+			)
+	);
+
+	static final int LATEST_VERSION = MIGRATIONS.size();
+
+	private SchemaMigrations() {}
+
+	/**
+	 * Applies every migration the database hasn't had yet, in one transaction,
+	 * which other connections wait for rather than migrating at the same time.
+	 *
+	 * @return the version the database was at before
+	 * @throws SQLException if the database is at a version newer than this code knows
+	 */
+	static int migrate(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.setQueryTimeout(30);
+			statement.execute("BEGIN IMMEDIATE"); // takes the write lock before the version is read
+			try {
+				statement.executeUpdate("CREATE TABLE IF NOT EXISTS schema_version ( version Integer PRIMARY KEY, applied_at Integer NOT NULL )");
+
+				int version;
+				try (var resultSet = statement.executeQuery("SELECT coalesce(max(version), 0) FROM schema_version")) {
+					resultSet.next();
+					version = resultSet.getInt(1);
+				}
+				if (version > LATEST_VERSION)
+					throw new SQLException("Database schema is at version " + version + ", newer than the latest known, " + LATEST_VERSION);
+
+				try (PreparedStatement record = connection.prepareStatement("INSERT INTO schema_version (version, applied_at) VALUES (?, strftime('%s', 'now'))")) {
+					for (int next = version + 1; next <= LATEST_VERSION; next++) {
+						for (var sql : MIGRATIONS.get(next - 1))
+							statement.executeUpdate(sql);
+
+						record.setInt(1, next);
+						record.executeUpdate();
+					}
+				}
+
+				statement.execute("COMMIT");
+				return version;
+			} catch (SQLException e) {
+				statement.execute("ROLLBACK");
+				throw e;
+			}
+		}
+	}
+}
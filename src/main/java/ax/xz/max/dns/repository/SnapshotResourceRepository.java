@@ -0,0 +1,382 @@
+package ax.xz.max.dns.repository;
+
+import ax.xz.max.dns.resource.CNameRecord;
+import ax.xz.max.dns.resource.DomainName;
+import ax.xz.max.dns.resource.ResourceRecord;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Serves every read from an immutable snapshot of the delegate's records, indexed by name and type, by name and by type,
+ * and published through a single volatile reference.
+ * <p>
+ * Readers never take a lock and always see a whole snapshot.
+ * Writers go to the delegate first, then build the next snapshot from the current one and swap it in,
+ * one writer at a time. A write only copies the records of the names it touches, and of the names changed since the
+ * records were last indexed, which happens again once those outnumber the square root of the indexed names;
+ * {@link #insertAll} and {@link #applyChanges} make many changes one write.
+ * Writes made to the delegate directly are picked up by reloading every record from it.
+ */
+public class SnapshotResourceRepository implements ResourceRepository {
+	private final ResourceRepository delegate;
+	private final List<WriteListener> writeListeners = new CopyOnWriteArrayList<>();
+	private final ReentrantLock writeLock = new ReentrantLock(); // only writers take it
+	private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+	private volatile Thread writingThread; // writing to the delegate, whose notifications it ignores
+	private volatile boolean isClosed = false;
+
+	public SnapshotResourceRepository(ResourceRepository delegate) throws ResourceAccessException, InterruptedException {
+		this.delegate = delegate;
+		reload();
+		delegate.addWriteListener(this::onDelegateWrite);
+	}
+
+	private void throwIfClosed() throws ResourceAccessException {
+		if (isClosed) throw new ResourceAccessException("Repository is closed");
+	}
+
+	private record NameAndType(DomainName name, short type) {}
+
+	/**
+	 * Every record, fully indexed, as of the last time the index was built.
+	 */
+	private record Index(
+			List<ResourceRecord> all,
+			List<DomainName> names,
+			Map<NameAndType, List<ResourceRecord>> byNameAndType,
+			Map<DomainName, List<ResourceRecord>> byName,
+			Map<Short, List<ResourceRecord>> byType
+	) {
+		static Index of(List<ResourceRecord> records) {
+			var byNameAndType = new HashMap<NameAndType, List<ResourceRecord>>();
+			var byName = new HashMap<DomainName, List<ResourceRecord>>();
+			var byType = new HashMap<Short, List<ResourceRecord>>();
+			for (var record : records) {
+				byNameAndType.computeIfAbsent(new NameAndType(record.name(), record.type()), key -> new ArrayList<>()).add(record);
+				byName.computeIfAbsent(record.name(), key -> new ArrayList<>()).add(record);
+				byType.computeIfAbsent(record.type(), key -> new ArrayList<>()).add(record);
+			}
+
+			byNameAndType.replaceAll((key, value) -> List.copyOf(value));
+			byName.replaceAll((key, value) -> List.copyOf(value));
+			byType.replaceAll((key, value) -> List.copyOf(value));
+			return new Index(List.copyOf(records), List.copyOf(byName.keySet()), Map.copyOf(byNameAndType), Map.copyOf(byName), Map.copyOf(byType));
+		}
+	}
+
+	/**
+	 * An index, plus the records of every name changed since it was built.
+	 * Lookups by name look at the changes first; the lists of every record, every name and each type
+	 * are merged from both on first use, once per snapshot.
+	 */
+	private static final class Snapshot {
+		static final Snapshot EMPTY = of(List.of());
+		private static final int MIN_CHANGES_BEFORE_REINDEXING = 64;
+
+		private final Index index;
+		private final Map<DomainName, List<ResourceRecord>> changedNames; // empty lists for names with no records left
+		private final Map<NameAndType, List<ResourceRecord>> changedGroups; // the groups of the changed names
+
+		// built on first use; threads that race build equal immutable lists
+		private List<ResourceRecord> all;
+		private List<DomainName> names;
+		private final Map<Short, List<ResourceRecord>> byType = new ConcurrentHashMap<>();
+
+		private Snapshot(Index index, Map<DomainName, List<ResourceRecord>> changedNames, Map<NameAndType, List<ResourceRecord>> changedGroups) {
+			this.index = index;
+			this.changedNames = changedNames;
+			this.changedGroups = changedGroups;
+		}
+
+		static Snapshot of(List<ResourceRecord> records) {
+			return new Snapshot(Index.of(records), Map.of(), Map.of());
+		}
+
+		List<ResourceRecord> byNameAndType(DomainName name, short type) {
+			var key = new NameAndType(name, type);
+			var records = changedNames.containsKey(name) ? changedGroups.get(key) : index.byNameAndType().get(key);
+			return records == null ? List.of() : records;
+		}
+
+		List<ResourceRecord> byName(DomainName name) {
+			var records = changedNames.get(name);
+			if (records == null) records = index.byName().get(name);
+			return records == null ? List.of() : records;
+		}
+
+		List<ResourceRecord> byType(short type) {
+			if (changedNames.isEmpty()) return index.byType().getOrDefault(type, List.of());
+			return byType.computeIfAbsent(type, key -> {
+				var records = new ArrayList<ResourceRecord>();
+				for (var record : index.byType().getOrDefault(key, List.of()))
+					if (!changedNames.containsKey(record.name())) records.add(record);
+				for (var recordsOfName : changedNames.values())
+					for (var record : recordsOfName)
+						if (record.type() == key) records.add(record);
+				return List.copyOf(records);
+			});
+		}
+
+		List<ResourceRecord> all() {
+			if (changedNames.isEmpty()) return index.all();
+
+			var all = this.all;
+			if (all == null) {
+				var records = new ArrayList<ResourceRecord>(index.all().size());
+				for (var record : index.all())
+					if (!changedNames.containsKey(record.name())) records.add(record);
+				changedNames.values().forEach(records::addAll);
+				this.all = all = List.copyOf(records);
+			}
+			return all;
+		}
+
+		List<DomainName> names() {
+			if (changedNames.isEmpty()) return index.names();
+
+			var names = this.names;
+			if (names == null) {
+				var merged = new ArrayList<DomainName>(index.names().size());
+				for (var name : index.names())
+					if (!changedNames.containsKey(name)) merged.add(name);
+				changedNames.forEach((name, records) -> {
+					if (!records.isEmpty()) merged.add(name);
+				});
+				this.names = names = List.copyOf(merged);
+			}
+			return names;
+		}
+
+		/**
+		 * The snapshot after applying changes in order.
+		 * Only the records of the names the changes touch are copied, along with the names changed by earlier snapshots;
+		 * once those outnumber the square root of the indexed names, every record is indexed again.
+		 *
+		 * @param removed where to put the records that were removed
+		 */
+		Snapshot with(List<? extends Change> changes, List<ResourceRecord> removed) {
+			// the records of each name the changes touch, as they end up
+			var touched = new HashMap<DomainName, List<ResourceRecord>>();
+			for (var change : changes) {
+				switch (change) {
+					case Change.Insert(var record) -> recordsOf(touched, record.name()).add(record);
+					case Change.Delete(var record) -> remove(recordsOf(touched, record.name()), record::equals, removed);
+					case Change.DeleteAllByName(var name) -> remove(recordsOf(touched, name), record -> true, removed);
+					case Change.DeleteAllByNameAndType(var name, var type) -> remove(recordsOf(touched, name), record -> record.type() == type, removed);
+					case Change.DeleteAllByType(var type) -> {
+						for (var record : byType(type))
+							recordsOf(touched, record.name());
+						for (var records : touched.values())
+							remove(records, record -> record.type() == type, removed);
+					}
+				}
+			}
+			if (touched.isEmpty()) return this;
+
+			var changedNames = new HashMap<>(this.changedNames);
+			var changedGroups = new HashMap<>(this.changedGroups);
+			touched.forEach((name, records) -> {
+				for (var record : byName(name))
+					changedGroups.remove(new NameAndType(name, record.type()));
+
+				var groups = new LinkedHashMap<Short, List<ResourceRecord>>();
+				for (var record : records)
+					groups.computeIfAbsent(record.type(), key -> new ArrayList<>()).add(record);
+				groups.forEach((type, group) -> changedGroups.put(new NameAndType(name, type), List.copyOf(group)));
+
+				changedNames.put(name, List.copyOf(records));
+			});
+
+			var next = new Snapshot(index, changedNames, changedGroups);
+			long changed = changedNames.size();
+			if (changed < MIN_CHANGES_BEFORE_REINDEXING || changed * changed < index.names().size()) return next;
+			return of(next.all());
+		}
+
+		private List<ResourceRecord> recordsOf(Map<DomainName, List<ResourceRecord>> touched, DomainName name) {
+			return touched.computeIfAbsent(name, key -> new ArrayList<>(byName(key)));
+		}
+
+		private static void remove(List<ResourceRecord> records, Predicate<ResourceRecord> filter, List<ResourceRecord> removed) {
+			records.removeIf(record -> {
+				if (!filter.test(record)) return false;
+				removed.add(record);
+				return true;
+			});
+		}
+	}
+
+	private void reload() throws ResourceAccessException, InterruptedException {
+		// read under the lock, so that a write through this repository can't land between reading and swapping
+		writeLock.lock();
+		try {
+			snapshot = Snapshot.of(delegate.getAll());
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private void onDelegateWrite() {
+		if (Thread.currentThread() == writingThread) return; // already applied to the snapshot
+
+		try {
+			reload();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ResourceAccessException("Interrupted while reloading records", e);
+		} finally {
+			notifyWriteListeners();
+		}
+	}
+
+	@FunctionalInterface
+	private interface DelegateWrite {
+		void applyTo(ResourceRepository delegate) throws ResourceAccessException, InterruptedException;
+	}
+
+	/**
+	 * Applies a write to the delegate, then swaps in a snapshot with the same changes.
+	 *
+	 * @return the records removed from the snapshot
+	 */
+	private List<ResourceRecord> write(DelegateWrite write, List<? extends Change> changes) throws ResourceAccessException, InterruptedException {
+		return write(write, (current, removed) -> current.with(changes, removed));
+	}
+
+	@FunctionalInterface
+	private interface SnapshotUpdate {
+		Snapshot apply(Snapshot current, List<ResourceRecord> removed);
+	}
+
+	private List<ResourceRecord> write(DelegateWrite write, SnapshotUpdate update) throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		writeLock.lock();
+		try {
+			writingThread = Thread.currentThread();
+			try {
+				write.applyTo(delegate);
+			} finally {
+				writingThread = null;
+			}
+
+			var removed = new ArrayList<ResourceRecord>();
+			snapshot = update.apply(snapshot, removed);
+			return removed;
+		} finally {
+			writeLock.unlock();
+			notifyWriteListeners();
+		}
+	}
+
+	@Override
+	public List<ResourceRecord> getAllByNameAndType(DomainName name, short type) throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		return snapshot.byNameAndType(name, type);
+	}
+
+	@Override
+	public List<AliasChain> getAllChainsByNameAndType(DomainName name, short type) throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		var snapshot = this.snapshot; // one snapshot for both steps
+		var chains = new ArrayList<AliasChain>();
+		for (var alias : snapshot.byNameAndType(name, CNameRecord.ID))
+			for (var record : snapshot.byNameAndType(((CNameRecord) alias).alias(), type))
+				chains.add(new AliasChain((CNameRecord) alias, record));
+		return chains;
+	}
+
+	@Override
+	public List<ResourceRecord> getAll() throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		return snapshot.all();
+	}
+
+	@Override
+	public List<DomainName> getAllDomainNames() throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		return snapshot.names();
+	}
+
+	@Override
+	public List<ResourceRecord> getAllByName(DomainName name) throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		return snapshot.byName(name);
+	}
+
+	@Override
+	public List<ResourceRecord> getAllByType(short type) throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		return snapshot.byType(type);
+	}
+
+	@Override
+	public void clear() throws ResourceAccessException, InterruptedException {
+		write(ResourceRepository::clear, (current, removed) -> Snapshot.EMPTY);
+	}
+
+	@Override
+	public void insert(ResourceRecord record) throws ResourceAccessException, InterruptedException {
+		write(delegate -> delegate.insert(record), List.of(new Change.Insert(record)));
+	}
+
+	/**
+	 * Inserts many records, swapping in a single snapshot once they have all reached the delegate.
+	 */
+	@Override
+	public void insertAll(Collection<? extends ResourceRecord> records) throws ResourceAccessException, InterruptedException {
+		write(delegate -> delegate.insertAll(records), records.stream().map(Change.Insert::new).toList());
+	}
+
+	/**
+	 * Applies the changes to the delegate as one batch, then swaps in a single snapshot.
+	 */
+	@Override
+	public List<ResourceRecord> applyChanges(List<? extends Change> changes) throws ResourceAccessException, InterruptedException {
+		return write(delegate -> delegate.applyChanges(changes), changes);
+	}
+
+	@Override
+	public List<ResourceRecord> delete(ResourceRecord record) throws ResourceAccessException, InterruptedException {
+		return write(delegate -> delegate.delete(record), List.of(new Change.Delete(record)));
+	}
+
+	@Override
+	public List<ResourceRecord> deleteAllByName(DomainName name) throws ResourceAccessException, InterruptedException {
+		return write(delegate -> delegate.deleteAllByName(name), List.of(new Change.DeleteAllByName(name)));
+	}
+
+	@Override
+	public List<ResourceRecord> deleteAllByNameAndType(DomainName name, short type) throws ResourceAccessException, InterruptedException {
+		return write(delegate -> delegate.deleteAllByNameAndType(name, type), List.of(new Change.DeleteAllByNameAndType(name, type)));
+	}
+
+	@Override
+	public List<ResourceRecord> deleteAllByType(short type) throws ResourceAccessException, InterruptedException {
+		return write(delegate -> delegate.deleteAllByType(type), List.of(new Change.DeleteAllByType(type)));
+	}
+
+	@Override
+	public void addWriteListener(WriteListener listener) {
+		writeListeners.add(listener);
+	}
+
+	private void notifyWriteListeners() {
+		for (var listener : writeListeners)
+			listener.onWrite();
+	}
+
+	@Override
+	public void close() throws ResourceAccessException {
+		isClosed = true;
+	}
+}
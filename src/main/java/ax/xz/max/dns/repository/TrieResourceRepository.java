@@ -0,0 +1,538 @@
+package ax.xz.max.dns.repository;
+
+import ax.xz.max.dns.resource.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+/**
+ * Keeps every record in memory, in a trie of labels read from the root down,
+ * so that finding a name takes one step per label, and a whole subtree can be {@linkplain #getAllInSubtree walked} in place.
+ * <p>
+ * Lookups by name and type, including alias chains, synthesize answers from wildcard records (RFC 4592):
+ * a name that doesn't exist is answered from the {@code *} child of its closest encloser,
+ * the deepest of its ancestors that does, with the owner of each record replaced by the name asked for.
+ * A name exists if it owns records, or has descendants that do.
+ * Every other method works on the records as they are stored.
+ * <p>
+ * Given a backing repository, the trie is loaded from it and every write goes to it first,
+ * so that it keeps the durable copy while all reads are served from memory.
+ * Writes made to the backing repository directly are picked up by reloading the whole trie.
+ */
+public class TrieResourceRepository implements ResourceRepository {
+	private static final byte[] ASTERISK = {'*'};
+
+	private final ResourceRepository backing; // null if the trie is the only copy
+	private final List<WriteListener> writeListeners = new CopyOnWriteArrayList<>();
+	private final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+	private final ReentrantReadWriteLock.ReadLock readLock = readWriteLock.readLock();
+	private final ReentrantReadWriteLock.WriteLock writeLock = readWriteLock.writeLock();
+	private Node root = Node.root();
+
+	private volatile Thread writingThread; // writing through to the backing repository, whose notifications it ignores
+	private volatile boolean isClosed = false;
+
+	public TrieResourceRepository() {
+		this.backing = null;
+	}
+
+	private TrieResourceRepository(ResourceRepository backing) {
+		this.backing = backing;
+	}
+
+	/**
+	 * Loads every record from a backing repository, which then receives every write made through the trie.
+	 */
+	public static TrieResourceRepository backedBy(ResourceRepository backing) throws ResourceAccessException, InterruptedException {
+		var repository = new TrieResourceRepository(backing);
+		repository.reload();
+		backing.addWriteListener(repository::onBackingWrite);
+		return repository;
+	}
+
+	private void throwIfClosed() throws ResourceAccessException {
+		if (isClosed) throw new ResourceAccessException("Repository is closed");
+	}
+
+	private void reload() throws ResourceAccessException, InterruptedException {
+		// read under the lock, so that a write through the trie can't land between reading and swapping
+		writeLock.lock();
+		try {
+			var root = Node.root();
+			for (var record : backing.getAll())
+				root.descendant(record.name(), true).records.add(record);
+			this.root = root;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private void onBackingWrite() {
+		if (Thread.currentThread() == writingThread) return; // already applied to the trie
+
+		try {
+			reload();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ResourceAccessException("Interrupted while reloading records", e);
+		} finally {
+			notifyWriteListeners();
+		}
+	}
+
+	@FunctionalInterface
+	private interface BackingWrite {
+		void applyTo(ResourceRepository backing) throws ResourceAccessException, InterruptedException;
+	}
+
+	/** Must be called with the write lock held, before the same write is applied to the trie */
+	private void writeThrough(BackingWrite write) throws ResourceAccessException, InterruptedException {
+		if (backing == null) return;
+
+		writingThread = Thread.currentThread();
+		try {
+			write.applyTo(backing);
+		} finally {
+			writingThread = null;
+		}
+	}
+
+	@Override
+	public List<ResourceRecord> getAllByNameAndType(DomainName name, short type) throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		readLock.lock();
+		try {
+			return lookup(name, type);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public List<AliasChain> getAllChainsByNameAndType(DomainName name, short type) throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		readLock.lock();
+		try {
+			var chains = new ArrayList<AliasChain>();
+			for (var alias : lookup(name, CNameRecord.ID))
+				for (var record : lookup(((CNameRecord) alias).alias(), type))
+					chains.add(new AliasChain((CNameRecord) alias, record));
+			return chains;
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * Finds the records of a type at a name, or synthesizes them from a wildcard if the name doesn't exist.
+	 * Must be called with the read lock held.
+	 */
+	private List<ResourceRecord> lookup(DomainName name, short type) {
+		var node = root.closestEncloser(name);
+		if (node.depth == name.labelCount())
+			return node.recordsOfType(type);
+
+		var wildcard = node.child(ASTERISK, 0, 1);
+		if (wildcard == null) return List.of();
+
+		var records = new ArrayList<ResourceRecord>();
+		for (var record : wildcard.recordsOfType(type))
+			records.add(withName(record, name));
+		return records;
+	}
+
+	private static ResourceRecord withName(ResourceRecord record, DomainName name) {
+		return switch (record) {
+			case ARecord a -> new ARecord(name, a.timeToLive(), a.address());
+			case AAAARecord a -> new AAAARecord(name, a.timeToLive(), a.address());
+			case CNameRecord c -> new CNameRecord(name, c.timeToLive(), c.alias());
+			case NSRecord n -> new NSRecord(name, n.timeToLive(), n.nameserver());
+			case OPTRecord o -> o;
+		};
+	}
+
+	@Override
+	public List<ResourceRecord> getAllByName(DomainName name) throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		readLock.lock();
+		try {
+			var node = root.descendant(name, false);
+			return node == null ? List.of() : List.copyOf(node.records);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * Every record owned by a name or any of its descendants.
+	 */
+	public List<ResourceRecord> getAllInSubtree(DomainName name) throws ResourceAccessException {
+		throwIfClosed();
+		readLock.lock();
+		try {
+			var node = root.descendant(name, false);
+			var records = new ArrayList<ResourceRecord>();
+			if (node != null) node.collect(record -> true, records);
+			return records;
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public List<ResourceRecord> getAll() throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		readLock.lock();
+		try {
+			var records = new ArrayList<ResourceRecord>();
+			root.collect(record -> true, records);
+			return records;
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public List<DomainName> getAllDomainNames() throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		readLock.lock();
+		try {
+			var names = new ArrayList<DomainName>();
+			root.collectNames(names);
+			return names;
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public List<ResourceRecord> getAllByType(short type) throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		readLock.lock();
+		try {
+			var records = new ArrayList<ResourceRecord>();
+			root.collect(record -> record.type() == type, records);
+			return records;
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public void clear() throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		writeLock.lock();
+		try {
+			writeThrough(ResourceRepository::clear);
+			root = Node.root();
+		} finally {
+			writeLock.unlock();
+			notifyWriteListeners();
+		}
+	}
+
+	@Override
+	public void insert(ResourceRecord record) throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		writeLock.lock();
+		try {
+			writeThrough(backing -> backing.insert(record));
+			root.descendant(record.name(), true).records.add(record);
+		} finally {
+			writeLock.unlock();
+			notifyWriteListeners();
+		}
+	}
+
+	@Override
+	public void insertAll(Collection<? extends ResourceRecord> records) throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		writeLock.lock();
+		try {
+			writeThrough(backing -> backing.insertAll(records));
+			for (var record : records)
+				root.descendant(record.name(), true).records.add(record);
+		} finally {
+			writeLock.unlock();
+			notifyWriteListeners();
+		}
+	}
+
+	@Override
+	public List<ResourceRecord> delete(ResourceRecord record) throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		writeLock.lock();
+		try {
+			writeThrough(backing -> backing.delete(record));
+			return remove(root.descendant(record.name(), false), record::equals);
+		} finally {
+			writeLock.unlock();
+			notifyWriteListeners();
+		}
+	}
+
+	@Override
+	public List<ResourceRecord> deleteAllByName(DomainName name) throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		writeLock.lock();
+		try {
+			writeThrough(backing -> backing.deleteAllByName(name));
+			return remove(root.descendant(name, false), record -> true);
+		} finally {
+			writeLock.unlock();
+			notifyWriteListeners();
+		}
+	}
+
+	@Override
+	public List<ResourceRecord> deleteAllByNameAndType(DomainName name, short type) throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		writeLock.lock();
+		try {
+			writeThrough(backing -> backing.deleteAllByNameAndType(name, type));
+			return remove(root.descendant(name, false), record -> record.type() == type);
+		} finally {
+			writeLock.unlock();
+			notifyWriteListeners();
+		}
+	}
+
+	@Override
+	public List<ResourceRecord> deleteAllByType(short type) throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		writeLock.lock();
+		try {
+			writeThrough(backing -> backing.deleteAllByType(type));
+			return removeAllOfType(type);
+		} finally {
+			writeLock.unlock();
+			notifyWriteListeners();
+		}
+	}
+
+	@Override
+	public List<ResourceRecord> applyChanges(List<? extends Change> changes) throws ResourceAccessException, InterruptedException {
+		throwIfClosed();
+		writeLock.lock();
+		try {
+			writeThrough(backing -> backing.applyChanges(changes));
+
+			var removed = new ArrayList<ResourceRecord>();
+			for (var change : changes) {
+				switch (change) {
+					case Change.Insert(var record) -> root.descendant(record.name(), true).records.add(record);
+					case Change.Delete(var record) -> removed.addAll(remove(root.descendant(record.name(), false), record::equals));
+					case Change.DeleteAllByName(var name) -> removed.addAll(remove(root.descendant(name, false), record -> true));
+					case Change.DeleteAllByNameAndType(var name, var type) -> removed.addAll(remove(root.descendant(name, false), record -> record.type() == type));
+					case Change.DeleteAllByType(var type) -> removed.addAll(removeAllOfType(type));
+				}
+			}
+			return removed;
+		} finally {
+			writeLock.unlock();
+			notifyWriteListeners();
+		}
+	}
+
+	/** Must be called with the write lock held */
+	private List<ResourceRecord> removeAllOfType(short type) {
+		var owners = new ArrayList<Node>();
+		root.collectOwners(owners);
+
+		var removed = new ArrayList<ResourceRecord>();
+		for (var node : owners)
+			removed.addAll(remove(node, record -> record.type() == type));
+		return removed;
+	}
+
+	/**
+	 * Removes the matching records of a node, then the node itself and any ancestors left empty.
+	 * Must be called with the write lock held.
+	 *
+	 * @param node the node, or {@code null} if its name doesn't exist
+	 */
+	private static List<ResourceRecord> remove(Node node, Predicate<ResourceRecord> filter) {
+		if (node == null) return List.of();
+
+		var removed = new ArrayList<ResourceRecord>();
+		node.records.removeIf(record -> filter.test(record) && removed.add(record));
+
+		while (node.parent != null && node.records.isEmpty() && node.childCount == 0) {
+			node.parent.removeChild(node);
+			node = node.parent;
+		}
+		return removed;
+	}
+
+	@Override
+	public void addWriteListener(WriteListener listener) {
+		writeListeners.add(listener);
+	}
+
+	private void notifyWriteListeners() {
+		for (var listener : writeListeners)
+			listener.onWrite();
+	}
+
+	@Override
+	public void close() throws ResourceAccessException {
+		isClosed = true;
+	}
+
+	/**
+	 * A name in the trie, whose children are kept in an open-addressing table keyed by label.
+	 */
+	private static final class Node {
+		private static final Node[] NO_CHILDREN = {};
+
+		private final byte[] label; // without its length; empty for the root
+		private final int hash;
+		private final Node parent;
+		private final int depth; // the number of labels in the name
+		private final List<ResourceRecord> records = new ArrayList<>(1);
+
+		private Node[] children = NO_CHILDREN;
+		private int childCount = 0;
+
+		private Node(byte[] label, Node parent) {
+			this.label = label;
+			this.hash = hash(label, 0, label.length);
+			this.parent = parent;
+			this.depth = parent == null ? 0 : parent.depth + 1;
+		}
+
+		static Node root() {
+			return new Node(new byte[0], null);
+		}
+
+		private static int hash(byte[] bytes, int offset, int length) {
+			int hash = 0;
+			for (int i = offset; i < offset + length; i++)
+				hash = 31 * hash + bytes[i];
+			return hash ^ (hash >>> 16);
+		}
+
+		/**
+		 * @return the child with the label at {@code bytes[offset, offset + length)}, or {@code null} if there is none
+		 */
+		Node child(byte[] bytes, int offset, int length) {
+			if (childCount == 0) return null;
+
+			int hash = hash(bytes, offset, length);
+			int mask = children.length - 1;
+			for (int slot = hash & mask; children[slot] != null; slot = (slot + 1) & mask) {
+				var child = children[slot];
+				if (child.hash == hash && Arrays.equals(child.label, 0, child.label.length, bytes, offset, offset + length))
+					return child;
+			}
+			return null;
+		}
+
+		private Node addChild(byte[] bytes, int offset, int length) {
+			if ((childCount + 1) * 2 > children.length) {
+				var old = children;
+				children = new Node[Math.max(4, old.length * 2)];
+				for (var child : old)
+					if (child != null) place(child);
+			}
+
+			var child = new Node(Arrays.copyOfRange(bytes, offset, offset + length), this);
+			place(child);
+			childCount++;
+			return child;
+		}
+
+		private void place(Node child) {
+			int mask = children.length - 1;
+			int slot = child.hash & mask;
+			while (children[slot] != null)
+				slot = (slot + 1) & mask;
+			children[slot] = child;
+		}
+
+		void removeChild(Node child) {
+			int mask = children.length - 1;
+			int slot = child.hash & mask;
+			while (children[slot] != child)
+				slot = (slot + 1) & mask;
+			children[slot] = null;
+			childCount--;
+
+			// shift back the children that probed past the freed slot
+			for (int next = (slot + 1) & mask; children[next] != null; next = (next + 1) & mask) {
+				int home = children[next].hash & mask;
+				boolean reachable = slot <= next ? home > slot && home <= next : home > slot || home <= next;
+				if (!reachable) {
+					children[slot] = children[next];
+					children[next] = null;
+					slot = next;
+				}
+			}
+		}
+
+		/**
+		 * @param create whether to create the nodes on the way that don't exist yet
+		 * @return the node of a name below this one, or {@code null} if it doesn't exist and isn't to be created
+		 */
+		Node descendant(DomainName name, boolean create) {
+			byte[] bytes = name.bytes();
+			var node = this;
+			for (int i = name.labelCount() - 1; i >= 0; i--) {
+				int offset = name.labelOffset(i);
+				var child = node.child(bytes, offset + 1, bytes[offset]);
+				if (child == null) {
+					if (!create) return null;
+					child = node.addChild(bytes, offset + 1, bytes[offset]);
+				}
+				node = child;
+			}
+			return node;
+		}
+
+		/**
+		 * The node of a name if it exists, or otherwise the deepest node of one of its ancestors.
+		 */
+		Node closestEncloser(DomainName name) {
+			byte[] bytes = name.bytes();
+			var node = this;
+			for (int i = name.labelCount() - 1; i >= 0; i--) {
+				int offset = name.labelOffset(i);
+				var child = node.child(bytes, offset + 1, bytes[offset]);
+				if (child == null) break;
+				node = child;
+			}
+			return node;
+		}
+
+		List<ResourceRecord> recordsOfType(short type) {
+			var matching = new ArrayList<ResourceRecord>(records.size());
+			for (var record : records)
+				if (record.type() == type) matching.add(record);
+			return matching;
+		}
+
+		void collect(Predicate<ResourceRecord> filter, List<ResourceRecord> into) {
+			for (var record : records)
+				if (filter.test(record)) into.add(record);
+			for (var child : children)
+				if (child != null) child.collect(filter, into);
+		}
+
+		void collectNames(List<DomainName> into) {
+			if (!records.isEmpty()) into.add(records.get(0).name());
+			for (var child : children)
+				if (child != null) child.collectNames(into);
+		}
+
+		void collectOwners(List<Node> into) {
+			if (!records.isEmpty()) into.add(this);
+			for (var child : children)
+				if (child != null) child.collectOwners(into);
+		}
+	}
+}
@@ -0,0 +1,393 @@
+package ax.xz.max.dns.repository;
+
+import ax.xz.max.dns.resource.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+/**
+ * Imports master files (RFC 1035, section 5) into a repository.
+ * <p>
+ * The file is read front to back on the calling thread, which only splits it into entries and keeps track of
+ * {@code $ORIGIN}, {@code $TTL}, the previous owner and the previous TTL, since each of those depends on the lines before.
+ * Entries are then parsed into records in chunks on a fork/join pool,
+ * and each chunk is inserted with {@link ResourceRepository#insertAll} in the order of the file,
+ * while later chunks are still being read and parsed.
+ * Only a few chunks are in flight at once, so files of any size are streamed.
+ * <p>
+ * Records of types the server doesn't support, or of classes other than IN, are skipped and counted.
+ * {@code $INCLUDE} is not supported, and quoted strings may not span lines.
+ * Each chunk is inserted on its own, so a file that fails part way is left partly imported.
+ */
+public final class ZoneFileLoader {
+	private final ResourceRepository repository;
+	private final ForkJoinPool pool;
+	private final int chunkSize;
+	private final Consumer<Progress> progressListener;
+
+	/**
+	 * @param chunkSize the number of entries parsed and inserted together
+	 * @param progressListener called on the calling thread after every chunk is inserted
+	 */
+	public ZoneFileLoader(ResourceRepository repository, ForkJoinPool pool, int chunkSize, Consumer<Progress> progressListener) {
+		if (chunkSize <= 0) throw new IllegalArgumentException("Chunk size must be positive");
+		this.repository = repository;
+		this.pool = pool;
+		this.chunkSize = chunkSize;
+		this.progressListener = progressListener;
+	}
+
+	public ZoneFileLoader(ResourceRepository repository) {
+		this(repository, ForkJoinPool.commonPool(), 10_000, progress -> {});
+	}
+
+	/**
+	 * @param records records inserted so far
+	 * @param skipped entries skipped so far, for having an unsupported type or class
+	 * @param lines lines read so far
+	 */
+	public record Progress(long records, long skipped, long lines, long elapsedNanos) {
+		public double recordsPerSecond() {
+			return elapsedNanos == 0 ? 0 : records * 1e9 / elapsedNanos;
+		}
+	}
+
+	/**
+	 * @param origin the initial origin, which relative names are resolved against until {@code $ORIGIN} changes it,
+	 *               or {@code null} if every name before the first {@code $ORIGIN} is absolute
+	 * @return the progress once the whole file is imported
+	 */
+	public Progress load(Path file, DomainName origin) throws IOException, InterruptedException {
+		try (var reader = Files.newBufferedReader(file, StandardCharsets.US_ASCII)) {
+			return load(reader, origin);
+		}
+	}
+
+	/**
+	 * Imports a master file like {@link #load(Path, DomainName)}, without closing the reader.
+	 */
+	public Progress load(Reader reader, DomainName origin) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		var lexer = new Lexer(reader instanceof BufferedReader buffered ? buffered : new BufferedReader(reader), origin);
+		var pending = new ArrayDeque<ForkJoinTask<Chunk>>();
+		long records = 0, skipped = 0;
+
+		try {
+			var entries = new ArrayList<Entry>(chunkSize);
+			boolean isEnd = false;
+			while (!isEnd) {
+				var entry = lexer.next();
+				isEnd = entry == null;
+				if (!isEnd) entries.add(entry);
+
+				if (entries.size() == chunkSize || isEnd && !entries.isEmpty()) {
+					var chunk = List.copyOf(entries);
+					pending.add(pool.submit(() -> parse(chunk)));
+					entries.clear();
+				}
+
+				// insert in file order, keeping a chunk per thread in flight until the end
+				while (pending.size() > pool.getParallelism() || isEnd && !pending.isEmpty()) {
+					var parsed = join(pending.poll());
+					repository.insertAll(parsed.records());
+					records += parsed.records().size();
+					skipped += parsed.skipped();
+					progressListener.accept(new Progress(records, skipped, lexer.lineNumber, System.nanoTime() - start));
+				}
+			}
+		} finally {
+			for (var task : pending)
+				task.cancel(true);
+		}
+
+		return new Progress(records, skipped, lexer.lineNumber, System.nanoTime() - start);
+	}
+
+	private static Chunk join(ForkJoinTask<Chunk> task) throws IOException, InterruptedException {
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			// fork/join wraps checked exceptions, and may copy them again to carry this thread's stack
+			for (var cause = e.getCause(); cause != null; cause = cause.getCause())
+				if (cause instanceof IOException parseFailure) throw parseFailure;
+			throw new IOException("Failed to parse records", e.getCause());
+		}
+	}
+
+	private record Chunk(List<ResourceRecord> records, int skipped) {}
+
+	/**
+	 * An entry with everything that depends on earlier lines already worked out.
+	 *
+	 * @param ownerOrigin the origin when the owner was written, which differs from {@code origin} if the owner was inherited
+	 * @param data the tokens after the type
+	 */
+	private record Entry(int line, String owner, DomainName ownerOrigin, DomainName origin, int timeToLive, boolean isInternet, String type, List<String> data) {}
+
+	private static Chunk parse(List<Entry> entries) throws IOException {
+		var records = new ArrayList<ResourceRecord>(entries.size());
+		int skipped = 0;
+
+		for (var entry : entries) {
+			try {
+				var record = toRecord(entry);
+				if (record != null) records.add(record);
+				else skipped++;
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Line " + entry.line() + ": " + e.getMessage(), e);
+			}
+		}
+		return new Chunk(records, skipped);
+	}
+
+	/**
+	 * @return the record, or {@code null} if its type or class isn't supported
+	 */
+	private static ResourceRecord toRecord(Entry entry) {
+		if (!entry.isInternet()) return null;
+
+		var name = resolve(entry.owner(), entry.ownerOrigin());
+		return switch (entry.type().toUpperCase(Locale.ROOT)) {
+			case "A" -> new ARecord(name, entry.timeToLive(), Inet4Address.ofLiteral(single(entry)));
+			case "AAAA" -> new AAAARecord(name, entry.timeToLive(), parseIPv6(single(entry)));
+			case "CNAME" -> new CNameRecord(name, entry.timeToLive(), resolve(single(entry), entry.origin()));
+			case "NS" -> new NSRecord(name, entry.timeToLive(), resolve(single(entry), entry.origin()));
+			default -> null;
+		};
+	}
+
+	private static Inet6Address parseIPv6(String literal) {
+		byte[] bytes = Inet6Address.ofLiteral(literal).getAddress();
+		if (bytes.length == 4) {
+			// an IPv4-mapped address, which comes back as the IPv4 address it maps
+			byte[] mapped = new byte[16];
+			mapped[10] = mapped[11] = (byte) 0xFF;
+			System.arraycopy(bytes, 0, mapped, 12, 4);
+			bytes = mapped;
+		}
+
+		try {
+			return Inet6Address.getByAddress(null, bytes, -1);
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException("Not an IPv6 address: " + literal, e); // never happens with 16 bytes
+		}
+	}
+
+	private static String single(Entry entry) {
+		if (entry.data().size() != 1) throw new IllegalArgumentException(entry.type() + " records have one field, not " + entry.data().size());
+		return entry.data().getFirst();
+	}
+
+	private static DomainName resolve(String name, DomainName origin) {
+		if (name.equals("@")) {
+			if (origin == null) throw new IllegalArgumentException("No origin for @");
+			return origin;
+		}
+		if (name.endsWith(".")) return new DomainName(name);
+
+		if (origin == null) throw new IllegalArgumentException("No origin for relative name " + name);
+		return new DomainName(origin.equals(DomainName.ROOT) ? name : name + "." + origin.name());
+	}
+
+	/**
+	 * Splits a master file into entries, handling directives along the way.
+	 */
+	private static final class Lexer {
+		private final BufferedReader reader;
+		private DomainName origin;
+		private int defaultTimeToLive = -1; // from $TTL
+		private int previousTimeToLive = -1;
+		private String previousOwner;
+		private DomainName previousOwnerOrigin;
+		private int lineNumber = 0;
+
+		Lexer(BufferedReader reader, DomainName origin) {
+			this.reader = reader;
+			this.origin = origin;
+		}
+
+		private IOException error(int line, String message) {
+			return new IOException("Line " + line + ": " + message);
+		}
+
+		/**
+		 * @return the next entry, or {@code null} at the end of the file
+		 */
+		Entry next() throws IOException {
+			var tokens = new ArrayList<String>();
+			while (true) {
+				int line = lineNumber + 1;
+				boolean inheritsOwner = readEntry(tokens);
+				if (tokens.isEmpty()) return null;
+
+				try {
+					if (tokens.getFirst().startsWith("$")) directive(tokens);
+					else return entry(line, inheritsOwner, tokens);
+				} catch (IllegalArgumentException e) {
+					throw error(line, e.getMessage());
+				}
+				tokens.clear();
+			}
+		}
+
+		private void directive(List<String> tokens) throws IOException {
+			switch (tokens.getFirst().toUpperCase(Locale.ROOT)) {
+				case "$ORIGIN" -> {
+					if (tokens.size() != 2) throw new IllegalArgumentException("$ORIGIN takes one name");
+					origin = resolve(tokens.get(1), origin);
+				}
+				case "$TTL" -> {
+					if (tokens.size() != 2) throw new IllegalArgumentException("$TTL takes one time to live");
+					defaultTimeToLive = parseTimeToLive(tokens.get(1));
+				}
+				default -> throw new IllegalArgumentException("Unsupported directive " + tokens.getFirst());
+			}
+		}
+
+		private Entry entry(int line, boolean inheritsOwner, List<String> tokens) {
+			int i = 0;
+			if (!inheritsOwner) {
+				previousOwner = tokens.get(i++);
+				previousOwnerOrigin = origin;
+			} else if (previousOwner == null) {
+				throw new IllegalArgumentException("No previous owner");
+			}
+
+			// the time to live and class may come in either order, and either may be left out
+			int timeToLive = -1;
+			boolean isInternet = true;
+			for (; i < tokens.size(); i++) {
+				var token = tokens.get(i);
+				if (!token.isEmpty() && Character.isDigit(token.charAt(0))) {
+					timeToLive = parseTimeToLive(token);
+				} else if (isClass(token)) {
+					isInternet = token.equalsIgnoreCase("IN");
+				} else {
+					break;
+				}
+			}
+			if (i == tokens.size()) throw new IllegalArgumentException("Missing type");
+
+			if (timeToLive >= 0) previousTimeToLive = timeToLive;
+			else if (defaultTimeToLive >= 0) timeToLive = defaultTimeToLive;
+			else if (previousTimeToLive >= 0) timeToLive = previousTimeToLive;
+			else throw new IllegalArgumentException("No time to live, and no $TTL");
+
+			return new Entry(line, previousOwner, previousOwnerOrigin, origin, timeToLive, isInternet, tokens.get(i), List.copyOf(tokens.subList(i + 1, tokens.size())));
+		}
+
+		private static boolean isClass(String token) {
+			return switch (token.toUpperCase(Locale.ROOT)) {
+				case "IN", "CH", "HS", "CS" -> true;
+				default -> false;
+			};
+		}
+
+		/**
+		 * Reads the tokens of the next entry, which spans lines while parentheses are open.
+		 *
+		 * @return whether the entry leaves out its owner, by starting with whitespace
+		 */
+		private boolean readEntry(List<String> tokens) throws IOException {
+			int depth = 0;
+			int start = 0;
+			boolean inheritsOwner = false;
+
+			String text;
+			while ((text = reader.readLine()) != null) {
+				lineNumber++;
+				if (depth == 0 && tokens.isEmpty()) {
+					start = lineNumber;
+					inheritsOwner = !text.isEmpty() && (text.charAt(0) == ' ' || text.charAt(0) == '\t');
+				}
+
+				depth = tokenize(text, tokens, depth);
+				if (depth == 0 && !tokens.isEmpty()) return inheritsOwner;
+			}
+
+			if (depth != 0) throw error(start, "Unbalanced parentheses");
+			return false;
+		}
+
+		/**
+		 * @return how many parentheses are still open at the end of the line
+		 */
+		private int tokenize(String text, List<String> tokens, int depth) throws IOException {
+			int i = 0;
+			while (i < text.length()) {
+				char c = text.charAt(i);
+				if (c == ';') break; // a comment
+				if (c == ' ' || c == '\t' || c == '\r') {
+					i++;
+				} else if (c == '(') {
+					depth++;
+					i++;
+				} else if (c == ')') {
+					if (--depth < 0) throw error(lineNumber, "Unbalanced parentheses");
+					i++;
+				} else if (c == '"') {
+					int start = ++i;
+					while (i < text.length() && text.charAt(i) != '"')
+						i += text.charAt(i) == '\\' ? 2 : 1;
+					if (i >= text.length()) throw error(lineNumber, "Unterminated string");
+					tokens.add(text.substring(start, i++));
+				} else {
+					int start = i;
+					while (i < text.length() && " \t\r;()\"".indexOf(text.charAt(i)) < 0)
+						i += text.charAt(i) == '\\' ? 2 : 1;
+					tokens.add(text.substring(start, Math.min(i, text.length())));
+				}
+			}
+			return depth;
+		}
+
+		/**
+		 * Parses a time to live in seconds, or with units as in {@code 1h30m}.
+		 */
+		private static int parseTimeToLive(String token) {
+			long total = 0;
+			long value = 0;
+			boolean hasDigits = false;
+			for (int i = 0; i < token.length(); i++) {
+				char c = token.charAt(i);
+				if (c >= '0' && c <= '9') {
+					value = value * 10 + (c - '0');
+					hasDigits = true;
+				} else if (hasDigits) {
+					total += value * switch (Character.toLowerCase(c)) {
+						case 'w' -> 604800;
+						case 'd' -> 86400;
+						case 'h' -> 3600;
+						case 'm' -> 60;
+						case 's' -> 1;
+						default -> throw new IllegalArgumentException("Invalid time to live: " + token);
+					};
+					value = 0;
+					hasDigits = false;
+				} else {
+					throw new IllegalArgumentException("Invalid time to live: " + token);
+				}
+				if (value > Integer.MAX_VALUE || total > Integer.MAX_VALUE) throw new IllegalArgumentException("Time to live too long: " + token);
+			}
+
+			total += value;
+			if (total > Integer.MAX_VALUE) throw new IllegalArgumentException("Time to live too long: " + token);
+			return (int) total;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package ax.xz.max.dns.repository;
+
+import ax.xz.max.dns.resource.DomainName;
+import ax.xz.max.dns.resource.OPTRecord;
+import ax.xz.max.dns.resource.ResourceRecord;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.foreign.ValueLayout.*;
+import static java.nio.ByteOrder.BIG_ENDIAN;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Compiles records into an immutable zone image, a file that {@link MappedResourceRepository} maps and answers lookups from.
+ * <p>
+ * An image holds every name once, with its records grouped into RRsets, and an open addressing hash table of the names.
+ * All numbers are big-endian, as on the wire:
+ * <pre>
+ * header   magic (4), version (2), reserved (2), name count (4), slot count (4), slots offset (8), names offset (8)
+ * slot     name hash (4), entry offset (8), or zero if the slot is free
+ * entry    name length (1), name in wire format, RRset count (2), RRsets
+ * RRset    type (2), record count (2), length of its records (4), records
+ * record   time to live (4), data length (2), data in wire format
+ * </pre>
+ * The hash is {@link DomainName#hashCode()}, which is the same in every JVM, and names are stored lower-cased.
+ */
+public final class ZoneImage {
+	static final ValueLayout.OfShort NETWORK_SHORT = JAVA_SHORT.withByteAlignment(1).withOrder(BIG_ENDIAN);
+	static final ValueLayout.OfInt NETWORK_INT = JAVA_INT.withByteAlignment(1).withOrder(BIG_ENDIAN);
+	static final ValueLayout.OfLong NETWORK_LONG = JAVA_LONG.withByteAlignment(1).withOrder(BIG_ENDIAN);
+
+	static final int MAGIC = 0x445A494D; // "DZIM"
+	static final short VERSION = 1;
+	static final int HEADER_SIZE = 32;
+	static final int SLOT_SIZE = 12;
+	static final int RRSET_HEADER_SIZE = 8;
+	static final int RECORD_HEADER_SIZE = 6;
+
+	private ZoneImage() {}
+
+	/**
+	 * Writes an image of the records to a file, replacing it atomically,
+	 * so that a repository still mapping the old image is not disturbed.
+	 * If writing fails, the file is left as it was.
+	 *
+	 * @throws IllegalArgumentException if one of the records is an OPT record, which are not zone data
+	 */
+	public static void compile(Collection<? extends ResourceRecord> records, Path file) throws IOException {
+		var names = new LinkedHashMap<DomainName, Map<Short, List<ResourceRecord>>>();
+		for (var record : records) {
+			if (record instanceof OPTRecord) throw new IllegalArgumentException("OPT records cannot be stored in a zone image");
+			names.computeIfAbsent(record.name(), name -> new LinkedHashMap<>())
+					.computeIfAbsent(record.type(), type -> new ArrayList<>())
+					.add(record);
+		}
+
+		int slotCount = Integer.highestOneBit(Math.max(names.size(), 1) * 2 - 1) << 1; // at most half full
+		long namesOffset = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+		long size = namesOffset;
+		for (var entry : names.entrySet())
+			size += entrySize(entry.getKey(), entry.getValue());
+
+		var temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			try (
+					var channel = FileChannel.open(temporary, CREATE, TRUNCATE_EXISTING, READ, WRITE);
+					var arena = Arena.ofConfined()
+			) {
+				var image = channel.map(FileChannel.MapMode.READ_WRITE, 0, size, arena);
+				image.set(NETWORK_INT, 0, MAGIC);
+				image.set(NETWORK_SHORT, 4, VERSION);
+				image.set(NETWORK_INT, 8, names.size());
+				image.set(NETWORK_INT, 12, slotCount);
+				image.set(NETWORK_LONG, 16, HEADER_SIZE);
+				image.set(NETWORK_LONG, 24, namesOffset);
+
+				long offset = namesOffset;
+				for (var entry : names.entrySet()) {
+					addSlot(image, slotCount, entry.getKey().hashCode(), offset);
+					offset = writeEntry(image, offset, entry.getKey(), entry.getValue());
+				}
+
+				image.force();
+			}
+
+			Files.move(temporary, file, REPLACE_EXISTING, ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			try {
+				Files.deleteIfExists(temporary);
+			} catch (IOException cleanupFailure) {
+				e.addSuppressed(cleanupFailure);
+			}
+			throw e;
+		}
+	}
+
+	static int slotOf(int hash, int slotCount) {
+		return (hash ^ (hash >>> 16)) & (slotCount - 1);
+	}
+
+	private static void addSlot(MemorySegment image, int slotCount, int hash, long entryOffset) {
+		int slot = slotOf(hash, slotCount);
+		while (image.get(NETWORK_LONG, HEADER_SIZE + (long) slot * SLOT_SIZE + 4) != 0)
+			slot = (slot + 1) & (slotCount - 1);
+
+		long slotOffset = HEADER_SIZE + (long) slot * SLOT_SIZE;
+		image.set(NETWORK_INT, slotOffset, hash);
+		image.set(NETWORK_LONG, slotOffset + 4, entryOffset);
+	}
+
+	private static long entrySize(DomainName name, Map<Short, List<ResourceRecord>> rrsets) {
+		long size = 1 + name.byteSize() + 2;
+		for (var rrset : rrsets.values()) {
+			size += RRSET_HEADER_SIZE;
+			for (var record : rrset)
+				size += RECORD_HEADER_SIZE + record.dataLength();
+		}
+		return size;
+	}
+
+	/**
+	 * @return the offset just past the entry
+	 */
+	private static long writeEntry(MemorySegment image, long offset, DomainName name, Map<Short, List<ResourceRecord>> rrsets) {
+		byte[] bytes = name.bytes();
+		image.set(JAVA_BYTE, offset, (byte) bytes.length);
+		MemorySegment.copy(bytes, 0, image, JAVA_BYTE, offset + 1, bytes.length);
+		offset += 1 + bytes.length;
+		image.set(NETWORK_SHORT, offset, (short) rrsets.size());
+		offset += 2;
+
+		for (var rrset : rrsets.entrySet()) {
+			long rrsetOffset = offset;
+			offset += RRSET_HEADER_SIZE;
+			for (var record : rrset.getValue()) {
+				image.set(NETWORK_INT, offset, record.timeToLive());
+				image.set(NETWORK_SHORT, offset + 4, (short) record.dataLength());
+				record.applyData(image.asSlice(offset + RECORD_HEADER_SIZE, record.dataLength()));
+				offset += RECORD_HEADER_SIZE + record.dataLength();
+			}
+
+			image.set(NETWORK_SHORT, rrsetOffset, rrset.getKey());
+			image.set(NETWORK_SHORT, rrsetOffset + 2, (short) rrset.getValue().size());
+			image.set(NETWORK_INT, rrsetOffset + 4, (int) (offset - rrsetOffset - RRSET_HEADER_SIZE));
+		}
+		return offset;
+	}
+}
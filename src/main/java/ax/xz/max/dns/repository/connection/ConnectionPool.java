@@ -4,18 +4,22 @@ import javax.sql.DataSource;
 import java.sql.*;
 import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.LongAdder;
 
 public class ConnectionPool {
 	private final ArrayBlockingQueue<Connection> availableConnections;
-	private final Set<Connection> usedConnections = new HashSet<>();
-	private int poolSize;
+	private final Set<Connection> usedConnections = ConcurrentHashMap.newKeySet(); // connections are acquired concurrently
+	private volatile int poolSize;
 	private final int corePoolSize;
 	private final int maxPoolSize;
 	private volatile boolean isClosed = false;
 	private final DataSource dataSource;
 
+	private final LongAdder acquisitions = new LongAdder();
+	private final LongAdder acquireWaitNanos = new LongAdder();
+
 	public ConnectionPool(DataSource dataSource, int corePoolSize, int maxPoolSize) {
 		availableConnections = new ArrayBlockingQueue<>(maxPoolSize);
 		this.dataSource = dataSource;
@@ -34,11 +38,14 @@ public class ConnectionPool {
 	public PooledConnection acquireConnection() throws InterruptedException, SQLException {
 		if (isClosed) throw new IllegalStateException("Connection pool is closed");
 
+		long start = System.nanoTime();
 		Connection connection;
 		do {
 			addConnectionIfNeeded();
 			connection = availableConnections.take();
 		} while (removeIfClosed(connection));
+		acquireWaitNanos.add(System.nanoTime() - start);
+		acquisitions.increment();
 
 		usedConnections.add(connection);
 		return new PooledConnection(connection);
@@ -80,6 +87,18 @@ public class ConnectionPool {
 		return false;
 	}
 
+	public Statistics statistics() {
+		return new Statistics(poolSize, usedConnections.size(), acquisitions.sum(), acquireWaitNanos.sum());
+	}
+
+	/**
+	 * @param size open connections, whether in use or not
+	 * @param inUse connections currently acquired
+	 * @param acquisitions connections acquired so far
+	 * @param acquireWaitNanos the total time spent acquiring them, including opening new connections
+	 */
+	public record Statistics(int size, int inUse, long acquisitions, long acquireWaitNanos) {}
+
 	public synchronized void close() throws SQLException {
 		if (isClosed) return;
 		for (Connection connection : availableConnections) connection.close();
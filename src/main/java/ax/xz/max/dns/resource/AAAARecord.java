@@ -16,6 +16,12 @@ public record AAAARecord(DomainName name, int timeToLive, Inet6Address address)
 		slice.copyFrom(MemorySegment.ofArray(address.getAddress()));
 	}
 
+	@Override
+	public int applyData(MemorySegment message, int offset, NameCompressor compressor) {
+		if (message != null) MemorySegment.copy(address.getAddress(), 0, message, JAVA_BYTE, offset, 16);
+		return 16;
+	}
+
 	@Override
 	public int dataLength() {
 		return 16;
@@ -16,6 +16,12 @@ public record ARecord(DomainName name, int timeToLive, Inet4Address address) imp
 		slice.copyFrom(MemorySegment.ofArray(address.getAddress()));
 	}
 
+	@Override
+	public int applyData(MemorySegment message, int offset, NameCompressor compressor) {
+		if (message != null) MemorySegment.copy(address.getAddress(), 0, message, JAVA_BYTE, offset, 4);
+		return 4;
+	}
+
 	@Override
 	public int dataLength() {
 		return 4;
@@ -10,6 +10,11 @@ public record CNameRecord(DomainName name, int timeToLive, DomainName alias) imp
 		alias.apply(slice);
 	}
 
+	@Override
+	public int applyData(MemorySegment message, int offset, NameCompressor compressor) {
+		return compressor.apply(alias, message, offset);
+	}
+
 	@Override
 	public int dataLength() {
 		return alias.byteSize();
@@ -108,10 +108,34 @@ public record DNSHeader(
 	}
 
 	public DNSHeader asErrorResponse() {
+		return asErrorResponse((byte) 2); // server failure
+	}
+
+	/**
+	 * A response with the given code and no records besides the questions.
+	 */
+	public DNSHeader asErrorResponse(byte responseCode) {
 		return new DNSHeader(
 				id,
 				true,
-				(byte) 2, // server failure
+				opcode,
+				isAuthoritative,
+				isTruncated,
+				recursionDesired,
+				recursionAvailable,
+				responseCode,
+				numQuestions,
+				(short) 0,
+				(short) 0,
+				(short) 0
+		);
+	}
+
+	public DNSHeader withCounts(short numAnswers, short numNS, short numAdditional) {
+		return new DNSHeader(
+				id,
+				isResponse,
+				opcode,
 				isAuthoritative,
 				isTruncated,
 				recursionDesired,
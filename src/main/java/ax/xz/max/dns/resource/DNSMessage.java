@@ -6,6 +6,11 @@ import java.util.ArrayList;
 import java.util.List;
 
 public record DNSMessage(DNSHeader header, List<DNSQuery> queries, List<ResourceRecord> answers, List<ResourceRecord> authorities, List<ResourceRecord> additional) {
+	/**
+	 * The largest message a client without EDNS accepts over UDP.
+	 */
+	public static final int UDP_PAYLOAD_SIZE = 512;
+
 	public DNSMessage {
 		if (header.numQuestions() != queries.size())
 			throw new IllegalArgumentException("Number of questions does not match number of queries");
@@ -21,34 +26,43 @@ public record DNSMessage(DNSHeader header, List<DNSQuery> queries, List<Resource
 	}
 
 	/**
-	 * Parses the queries of a DNS message.
+	 * Parses a DNS message with a {@link MessageDecoder}.
+	 * Records of unsupported types are skipped, and the header's counts adjusted to match.
 	 */
 	public static DNSMessage parseMessage(MemorySegment data) {
-		var header = DNSHeader.fromData(data);
-		var querySegment = data.asSlice(header.byteSize());
-		int queryOffset = 0;
-
-		ArrayList<DNSQuery> queries = new ArrayList<>(header.numQuestions());
-
-		for (int i = 0; i < header.numQuestions(); i++) {
-			var query = DNSQuery.fromData(querySegment.asSlice(queryOffset));
-			queryOffset += query.bytesParsed();
-			queries.add(query.query());
-		}
-
-		// todo: parse these
-//		if (!header.isResponse()) {
-//			if (header.numAnswers() != 0)
-//				throw new IllegalArgumentException("Query cannot contain answers");
-//			if (header.numNS() != 0)
-//				throw new IllegalArgumentException("Query cannot contain authorities");
-//			if (header.numAdditional() != 0)
-//				throw new IllegalArgumentException("Query cannot contain additional");
-//		}
+		return MessageDecoder.decode(data);
+	}
 
-		return new DNSMessage(header, queries, List.of(), List.of(), List.of());
+	/**
+	 * The OPT pseudo-record, present if the sender supports EDNS.
+	 *
+	 * @return the record, or {@code null} if there is none
+	 * @throws IllegalArgumentException if there are several
+	 */
+	public OPTRecord optRecord() {
+		OPTRecord result = null;
+		for (var record : additional)
+			if (record instanceof OPTRecord opt) {
+				if (result != null) throw new IllegalArgumentException("Message has more than one OPT record");
+				result = opt;
+			}
+		return result;
+	}
+
+	/**
+	 * Adds an OPT pseudo-record to the additional section.
+	 */
+	public DNSMessage withOptRecord(OPTRecord opt) {
+		var additional = new ArrayList<>(this.additional);
+		additional.add(opt);
+
+		var header = this.header.withCounts(this.header.numAnswers(), this.header.numNS(), (short) additional.size());
+		return new DNSMessage(header, queries, answers, authorities, additional);
 	}
 
+	/**
+	 * The size of this message without name compression, which bounds its serialized size.
+	 */
 	public int byteSize() {
 		int total = header.byteSize();
 		for (var query : queries) total += query.byteSize();
@@ -59,53 +73,57 @@ public record DNSMessage(DNSHeader header, List<DNSQuery> queries, List<Resource
 		return total;
 	}
 
-	private boolean needsTruncation(int size) {
-		return size > 512;
-	}
-
 	public boolean needsTruncation() {
-		return needsTruncation(byteSize());
+		return byteSize() > UDP_PAYLOAD_SIZE;
 	}
 
 	public MemorySegment toTruncatedMemorySegment(SegmentAllocator allocator) {
-		MemorySegment segment = toMemorySegment(allocator);
+		return toTruncatedMemorySegment(allocator, UDP_PAYLOAD_SIZE);
+	}
+
+	/**
+	 * Serializes this message with compressed names, {@linkplain DNSWriter#write truncated} to {@code maxSize} bytes.
+	 * The uncompressed size bounds the space allocated; to write without measuring first, use a {@link DNSWriter}.
+	 */
+	public MemorySegment toTruncatedMemorySegment(SegmentAllocator allocator, int maxSize) {
+		var segment = allocator.allocate(Math.min(byteSize(), maxSize));
+		return segment.asSlice(0, new DNSWriter().write(this, segment, maxSize));
+	}
 
-		// avoid re-calculating bytesize
-		var header = needsTruncation((int) segment.byteSize()) ? this.header.asTruncated() : this.header;
+	/**
+	 * Leaves out the authority and additional sections of a positive answer, except for the OPT record.
+	 * Negative answers and errors are returned unchanged, since their authority section is what the client needs.
+	 */
+	public DNSMessage asMinimalResponse() {
+		if (header.responseCode() != 0 || answers.isEmpty())
+			return this;
 
-		header.apply(segment); // apply the header again
+		var opt = optRecord();
+		var additional = opt == null ? List.<ResourceRecord>of() : List.<ResourceRecord>of(opt);
 
-		if (needsTruncation()) return segment.asSlice(0, 512);
-		else return segment;
+		var header = this.header.withCounts(this.header.numAnswers(), (short) 0, (short) additional.size());
+		return new DNSMessage(header, queries, answers, List.of(), additional);
 	}
 
 	public MemorySegment toMemorySegment(SegmentAllocator allocator) {
-		MemorySegment segment = allocator.allocate(byteSize());
-		header.apply(segment);
-		int offset = header.byteSize();
-
-		for (var query : queries) {
-			query.apply(segment.asSlice(offset));
-			offset += query.byteSize();
-		}
-		for (var answer : answers) {
-			answer.apply(segment.asSlice(offset));
-			offset += answer.byteSize();
-		}
-		for (var authority : authorities) {
-			authority.apply(segment.asSlice(offset));
-			offset += authority.byteSize();
-		}
-		for (var additional : additional) {
-			additional.apply(segment.asSlice(offset));
-			offset += additional.byteSize();
-		}
-
-		return segment;
+		return toTruncatedMemorySegment(allocator, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * An empty, truncated response, which tells the client to retry over TCP.
+	 */
+	public DNSMessage asTruncatedResponse() {
+		var header = header().asMinimalAnswer((short) 0, (short) 0, (short) 0).asTruncated();
+		return new DNSMessage(header, queries, List.of(), List.of(), List.of());
 	}
 
 	public DNSMessage asErrorResponse() {
 		var header = header().asErrorResponse();
 		return new DNSMessage(header, queries, List.of(), List.of(), List.of());
 	}
+
+	public DNSMessage asErrorResponse(byte responseCode) {
+		var header = header().asErrorResponse(responseCode);
+		return new DNSMessage(header, queries, List.of(), List.of(), List.of());
+	}
 }
@@ -41,4 +41,19 @@ public record DNSQuery(DomainName name, short type, short classID) {
 		trailer.set(NETWORK_SHORT, 2, classID);
 	}
 
+	/**
+	 * Writes this query at an offset within a whole message, compressing its name against those written before it.
+	 *
+	 * @param message the message being written, or {@code null} to only measure
+	 * @return the number of bytes written
+	 */
+	public int apply(MemorySegment message, int offset, NameCompressor compressor) {
+		int nameLength = compressor.apply(name, message, offset);
+		if (message != null) {
+			message.set(NETWORK_SHORT, offset + nameLength, type);
+			message.set(NETWORK_SHORT, offset + nameLength + 2, classID);
+		}
+		return nameLength + 4;
+	}
+
 }
@@ -0,0 +1,222 @@
+package ax.xz.max.dns.resource;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Writes messages in wire format front to back, straight into a buffer supplied by the caller.
+ * <p>
+ * Nothing is measured ahead of time: a record is only checked against the space left by its uncompressed size,
+ * and measured exactly when that doesn't fit, in case compression makes up the difference.
+ * A record that still doesn't fit is not written, which is where truncation happens.
+ * <p>
+ * A writer keeps its name compression table between messages,
+ * so it can be reused for any number of messages, by one thread at a time.
+ */
+public final class DNSWriter {
+	private static final int HEADER_SIZE = 12;
+
+	private final NameCompressor compressor = new NameCompressor();
+
+	private MemorySegment buffer;
+	private int limit;
+	private int reserved; // space kept back for OPT records still to be written
+	private int position;
+	private boolean truncated;
+
+	/**
+	 * Starts a message at the start of a buffer, leaving room for the header, which is written last.
+	 *
+	 * @param maxSize the most bytes the message may take, if the buffer is larger than that
+	 */
+	public void begin(MemorySegment buffer, int maxSize) {
+		int limit = (int) Math.min(maxSize, buffer.byteSize());
+		if (limit < HEADER_SIZE) throw new IllegalArgumentException("Buffer too small for a header: " + limit + " bytes");
+
+		compressor.reset();
+		this.buffer = buffer;
+		this.limit = limit;
+		this.reserved = 0;
+		this.position = HEADER_SIZE;
+		this.truncated = false;
+	}
+
+	/**
+	 * The number of bytes written so far, including the header.
+	 */
+	public int position() {
+		return position;
+	}
+
+	/**
+	 * Whether the last message written with {@link #write} had records left out to fit.
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Writes the header, which always goes at the start of the buffer.
+	 */
+	public void writeHeader(DNSHeader header) {
+		header.apply(buffer);
+	}
+
+	/**
+	 * @return whether the question fit; if not, nothing was written
+	 */
+	public boolean writeQuestion(DNSQuery query) {
+		int available = limit - reserved - position;
+		if (query.byteSize() > available) {
+			int size = query.apply(null, position, compressor);
+			compressor.forget(position);
+			if (size > available) return false;
+		}
+
+		position += query.apply(buffer, position, compressor);
+		return true;
+	}
+
+	/**
+	 * Copies the first question of a request as the client sent it, keeping the case of its name,
+	 * which clients that randomize it check (draft-vixie-dnsext-dns0x20).
+	 *
+	 * @param query the request's first question, which later names are compressed against
+	 * @return whether the question fit; if not, nothing was written
+	 */
+	public boolean echoQuestion(DNSQuery query, MessageView request) {
+		int length = request.questionNameLength() + 4;
+		if (length > limit - reserved - position) return false;
+
+		MemorySegment.copy(request.segment(), request.questionNameOffset(), buffer, position, length);
+		compressor.apply(query.name(), null, position); // only remembers it
+		position += length;
+		return true;
+	}
+
+	/**
+	 * @return whether the record fit; if not, nothing was written
+	 */
+	public boolean writeRecord(ResourceRecord record) {
+		int available = limit - reserved - position;
+		if (record.byteSize() > available) {
+			// compression may still make it fit
+			int size = record.apply(null, position, compressor);
+			compressor.forget(position);
+			if (size > available) return false;
+		}
+
+		position += record.apply(buffer, position, compressor);
+		return true;
+	}
+
+	/**
+	 * Discards everything written from a position onwards, which must be one {@link #position()} returned earlier.
+	 */
+	public void rewind(int position) {
+		if (position < HEADER_SIZE || position > this.position) throw new IllegalArgumentException("Cannot rewind to " + position);
+		compressor.forget(position);
+		this.position = position;
+	}
+
+	/**
+	 * Writes a whole message from the start of a buffer, truncated if it is larger than {@code maxSize} bytes or the buffer.
+	 * <p>
+	 * Whole RRsets are dropped from the first that doesn't fit onwards, so the answer section is cut last.
+	 * OPT records are always kept, and the space for them is set aside first.
+	 * The TC bit is only set if answers had to be dropped, since the client needs nothing else to use the response.
+	 * RRsets are expected to be contiguous within their section, as responses always keep them.
+	 *
+	 * @return the number of bytes written
+	 * @throws IllegalArgumentException if not even the question section fits
+	 */
+	public int write(DNSMessage message, MemorySegment buffer, int maxSize) {
+		return write(message, null, buffer, maxSize);
+	}
+
+	/**
+	 * Writes a response like {@link #write(DNSMessage, MemorySegment, int)},
+	 * but {@linkplain #echoQuestion echoes} the question from the request if it has exactly one that can be copied.
+	 *
+	 * @param request the request being answered, or {@code null} to write the questions from the response
+	 */
+	public int write(DNSMessage message, MessageView request, MemorySegment buffer, int maxSize) {
+		begin(buffer, maxSize);
+
+		boolean fits = true;
+		if (request != null && request.hasQuestion() && request.numQuestions() == 1 && message.queries().size() == 1)
+			fits = echoQuestion(message.queries().get(0), request);
+		else
+			for (var query : message.queries())
+				fits &= writeQuestion(query);
+		if (!fits) throw new IllegalArgumentException("Question section does not fit in " + limit + " bytes");
+
+		for (var record : message.additional())
+			if (record instanceof OPTRecord) reserved += record.byteSize();
+
+		int answers = writeSection(message.answers(), false);
+		boolean droppedAnswers = answers < message.answers().size();
+		int authorities = writeSection(message.authorities(), droppedAnswers);
+		boolean dropped = droppedAnswers || authorities < message.authorities().size();
+		int additional = writeSection(message.additional(), dropped);
+		truncated = dropped || additional < message.additional().size();
+
+		var header = message.header().withCounts((short) answers, (short) authorities, (short) additional);
+		writeHeader(droppedAnswers ? header.asTruncated() : header);
+		return position;
+	}
+
+	/**
+	 * Writes a whole message at a buffer's position, like {@link #write(DNSMessage, MemorySegment, int)},
+	 * and advances the position past it.
+	 */
+	public int write(DNSMessage message, ByteBuffer buffer, int maxSize) {
+		int written = write(message, MemorySegment.ofBuffer(buffer), maxSize);
+		buffer.position(buffer.position() + written);
+		return written;
+	}
+
+	/**
+	 * Writes the records of a section until one doesn't fit, then drops the rest of its RRset and everything after it,
+	 * except OPT records.
+	 *
+	 * @param optOnly whether an earlier section was cut short, so only OPT records are left to write
+	 * @return the number of records written
+	 */
+	private int writeSection(List<ResourceRecord> records, boolean optOnly) {
+		int count = 0;
+		int rrsetStart = position;
+		int rrsetCount = 0;
+		ResourceRecord previous = null;
+
+		for (var record : records) {
+			if (record instanceof OPTRecord) {
+				reserved -= record.byteSize();
+				if (writeRecord(record)) count++;
+				previous = null;
+				continue;
+			}
+			if (optOnly) continue;
+
+			if (previous == null || !isSameRRset(previous, record)) {
+				rrsetStart = position;
+				rrsetCount = count;
+			}
+
+			if (writeRecord(record)) {
+				count++;
+				previous = record;
+			} else {
+				rewind(rrsetStart);
+				count = rrsetCount;
+				optOnly = true;
+			}
+		}
+		return count;
+	}
+
+	private static boolean isSameRRset(ResourceRecord a, ResourceRecord b) {
+		return a.type() == b.type() && a.classID() == b.classID() && a.name().equals(b.name());
+	}
+}
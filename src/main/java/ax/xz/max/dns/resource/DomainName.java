@@ -3,54 +3,188 @@ package ax.xz.max.dns.resource;
 import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
 import java.nio.charset.StandardCharsets;
-import java.util.function.Predicate;
-import java.util.regex.Pattern;
+import java.util.Arrays;
 
 import static java.lang.foreign.ValueLayout.JAVA_BYTE;
 import static java.nio.ByteOrder.BIG_ENDIAN;
 
-public record DomainName(String name) {
-	public DomainName {
-		name = name.toLowerCase();
+/**
+ * A domain name, kept in lowercase uncompressed wire format.
+ * <p>
+ * The offset of each label and a hash are computed once, on construction,
+ * so that comparing, hashing, serializing and matching suffixes never decode the name again.
+ * The hash is the one {@link #hashIgnoreCase} computes over the same bytes.
+ */
+public final class DomainName {
+	private static final ValueLayout.OfByte NETWORK_BYTE = JAVA_BYTE.withByteAlignment(1).withOrder(BIG_ENDIAN);
+
+	private static final int MAX_LENGTH = 255;
+	private static final int MAX_LABEL_LENGTH = 63;
+
+	private final byte[] bytes;
+	private final byte[] labelOffsets; // unsigned; the root label's terminating zero is not counted
+	private final int hash;
+
+	/**
+	 * Parses a name in presentation format, such as {@code www.example.com}.
+	 * A trailing dot is optional, and {@code @} or an empty string is the root.
+	 */
+	public DomainName(String name) {
+		this(toWireFormat(name));
+	}
+
+	/**
+	 * @param bytes a name in uncompressed wire format, which is validated, lower-cased and kept
+	 */
+	private DomainName(byte[] bytes) {
+		if (bytes.length > MAX_LENGTH) throw new IllegalArgumentException("Name too long: " + bytes.length + " bytes");
+		if (bytes.length > 1 && bytes[1] == '-') throw new IllegalArgumentException("Name cannot start with hyphen");
+
+		int labels = 0;
+		int offset = 0;
+		while (true) {
+			if (offset >= bytes.length) throw new IllegalArgumentException("Name is not terminated");
+			int length = Byte.toUnsignedInt(bytes[offset]);
+			if (length == 0) break;
+			if (length > MAX_LABEL_LENGTH) throw new IllegalArgumentException("Label too long: " + length);
+			if (offset + 1 + length > bytes.length) throw new IllegalArgumentException("Name is not terminated");
+
+			boolean isAsterisk = length == 1 && bytes[offset + 1] == '*'; // a label of its own, as wildcards have
+			for (int i = offset + 1; i <= offset + length && !isAsterisk; i++) {
+				byte b = toLowerCase(bytes[i]);
+				if (!(b >= 'a' && b <= 'z' || b >= '0' && b <= '9' || b == '-'))
+					throw new IllegalArgumentException("Invalid label: " + new String(bytes, offset + 1, length, StandardCharsets.US_ASCII));
+				bytes[i] = b;
+			}
+
+			labels++;
+			offset += length + 1;
+		}
+		if (offset != bytes.length - 1) throw new IllegalArgumentException("Trailing bytes after name");
+
+		this.bytes = bytes;
+		this.labelOffsets = new byte[labels];
+		for (int i = 0, labelOffset = 0; i < labels; i++) {
+			labelOffsets[i] = (byte) labelOffset;
+			labelOffset += bytes[labelOffset] + 1;
+		}
+		this.hash = hashIgnoreCase(MemorySegment.ofArray(bytes), 0, bytes.length);
+	}
+
+	/**
+	 * Reads a name in uncompressed wire format, such as one stored by {@link #bytes()}.
+	 * The array is kept rather than copied, so it must not be modified afterwards.
+	 */
+	public static DomainName fromWireFormat(byte[] bytes) {
+		return new DomainName(bytes);
+	}
+
+	private static byte[] toWireFormat(String name) {
 		if (name.equals("@")) name = "";
 		if (name.startsWith(".")) name = name.substring(1);
-		if (!name.endsWith(".")) name += ".";
-		if (name.startsWith("-")) throw new IllegalArgumentException("Name cannot start with hyphen: " + name);
-		if (name.endsWith("-")) throw new IllegalArgumentException("Name cannot end with hyphen: " + name);
-		if (!name.equals(".")) {
-			for (String label : name.split("\\.")) {
-				if (label.length() > 63) throw new IllegalArgumentException("Label too long: " + label);
-				if (!LABEL_TESTER.test(label)) throw new IllegalArgumentException("Invalid label: " + label);
+		if (!name.isEmpty() && !name.endsWith(".")) name += ".";
+
+		// every dot becomes the next label's length, and the first label's length takes the place of the final dot
+		byte[] bytes = new byte[name.length() + 1];
+		int labelStart = 0;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c == '.') {
+				if (i == labelStart) throw new IllegalArgumentException("Invalid label: empty label in " + name);
+				if (i - labelStart > MAX_LABEL_LENGTH) throw new IllegalArgumentException("Label too long: " + name.substring(labelStart, i));
+				bytes[labelStart] = (byte) (i - labelStart);
+				labelStart = i + 1;
+			} else {
+				if (c > 0x7F) throw new IllegalArgumentException("Invalid label: " + name);
+				bytes[i + 1] = (byte) c;
 			}
 		}
-		if (name.length() > 255) throw new IllegalArgumentException("Name too long: " + name);
+		return bytes;
 	}
 
-	private static final Predicate<String> LABEL_TESTER = Pattern.compile("^[a-z0-9-]+$").asMatchPredicate();
+	/**
+	 * The name in presentation format, with a trailing dot.
+	 */
+	public String name() {
+		if (bytes.length == 1) return ".";
 
-	private static final ValueLayout.OfByte NETWORK_BYTE = JAVA_BYTE.withByteAlignment(1).withOrder(BIG_ENDIAN);
+		var builder = new StringBuilder(bytes.length - 1);
+		for (int offset = 0; bytes[offset] != 0; offset += bytes[offset] + 1)
+			builder.append(new String(bytes, offset + 1, bytes[offset], StandardCharsets.US_ASCII)).append('.');
+		return builder.toString();
+	}
 
 	public String[] labels() {
-		return name.split("\\.");
+		var labels = new String[labelOffsets.length];
+		for (int i = 0; i < labels.length; i++)
+			labels[i] = label(i);
+		return labels;
+	}
+
+	public int labelCount() {
+		return labelOffsets.length;
+	}
+
+	/**
+	 * The label at the given index, counting from the leftmost.
+	 */
+	public String label(int index) {
+		int offset = labelOffset(index);
+		return new String(bytes, offset + 1, bytes[offset], StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * The offset of a label within {@link #bytes()}, which is also where the suffix starting with it begins.
+	 */
+	public int labelOffset(int index) {
+		return Byte.toUnsignedInt(labelOffsets[index]);
+	}
+
+	/**
+	 * Whether the leftmost label is an asterisk, which makes this the owner of wildcard records (RFC 4592).
+	 */
+	public boolean isWildcard() {
+		return bytes.length > 2 && bytes[0] == 1 && bytes[1] == '*';
+	}
+
+	/**
+	 * The name left after removing the leftmost label, or {@code null} for the root.
+	 */
+	public DomainName parent() {
+		if (labelOffsets.length == 0) return null;
+		return new DomainName(Arrays.copyOfRange(bytes, bytes[0] + 1, bytes.length));
+	}
+
+	/**
+	 * Whether this name equals the given one or ends with all of its labels.
+	 */
+	public boolean isSubdomainOf(DomainName ancestor) {
+		int offset = bytes.length - ancestor.bytes.length;
+		if (offset < 0 || offset > 0 && !isLabelOffset(offset)) return false;
+		return Arrays.equals(bytes, offset, bytes.length, ancestor.bytes, 0, ancestor.bytes.length);
+	}
+
+	private boolean isLabelOffset(int offset) {
+		for (byte labelOffset : labelOffsets)
+			if (Byte.toUnsignedInt(labelOffset) == offset) return true;
+		return false;
+	}
+
+	/**
+	 * Whether the suffix of this name starting at {@code offset} equals the suffix of another starting at {@code otherOffset}.
+	 * Both offsets must be {@linkplain #labelOffset label offsets}.
+	 */
+	public boolean suffixEquals(int offset, DomainName other, int otherOffset) {
+		return Arrays.equals(bytes, offset, bytes.length, other.bytes, otherOffset, other.bytes.length);
 	}
 
 	public int byteSize() {
-		if (name.equals("."))
-			return 1;
-		return name.length() + 1; // null-terminated; +2 if name doesn't end with .
+		return bytes.length;
 	}
 
 	public void apply(MemorySegment slice) {
 		if (slice.byteSize() < byteSize()) throw new IllegalArgumentException("Slice too small!");
-		long offset = 0;
-
-		for (String label : labels()) {
-			slice.set(NETWORK_BYTE, offset, (byte) label.length());
-			slice.setString(offset + 1, label, StandardCharsets.US_ASCII);
-			offset += 1 + label.length();
-		}
-
-		slice.set(NETWORK_BYTE, offset, (byte) 0); // technically unnecessary; null-terminated
+		MemorySegment.copy(bytes, 0, slice, JAVA_BYTE, 0, bytes.length);
 	}
 
 	/**
@@ -74,50 +208,98 @@ public record DomainName(String name) {
 	 * Protects against infinite loops by delegating to a depth-limited helper.
 	 */
 	public static ParsedDomainName fromData(MemorySegment data, MemorySegment context) {
-		return fromData0(data, context, 0);
+		byte[] buffer = new byte[MAX_LENGTH + 1];
+		int bytesParsed = fromData0(data, context, buffer, 0, 0);
+		int length = 0;
+		while (buffer[length] != 0) length += buffer[length] + 1;
+		return new ParsedDomainName(new DomainName(Arrays.copyOf(buffer, length + 1)), bytesParsed);
 	}
 
 	/**
-	 * Supports compression pointers, referencing the context.
+	 * Copies the labels of a name into the buffer, following compression pointers into the context.
 	 * Protects against infinite loops.
+	 *
+	 * @param written how much of the buffer is already filled
+	 * @return the number of bytes read from {@code data}
 	 */
-	private static ParsedDomainName fromData0(MemorySegment data, MemorySegment context, int depth) {
+	private static int fromData0(MemorySegment data, MemorySegment context, byte[] buffer, int written, int depth) {
 		if (depth > 10) throw new IllegalArgumentException("Too many compression pointers- possible infinite loop");
 
-		StringBuilder builder = new StringBuilder();
-
 		int nextIndex = 0; // always points to the next byte to read
 		int labelLength = Byte.toUnsignedInt(data.get(NETWORK_BYTE, nextIndex++));
 		while (labelLength != 0) {
 			if ((labelLength & 0b1100_0000) != 0) {
 				// compression pointer
-				int pointer = ((labelLength & 0b0011_1111) << 8) | data.get(NETWORK_BYTE, nextIndex++);
+				int pointer = ((labelLength & 0b0011_1111) << 8) | Byte.toUnsignedInt(data.get(NETWORK_BYTE, nextIndex++));
 				MemorySegment pointerData = context.asSlice(pointer);
-				DomainName pointerName = fromData0(pointerData, context, depth + 1).domainName();
-				builder.append(pointerName.name);
-				return new ParsedDomainName(new DomainName(builder.toString()), nextIndex);
+				fromData0(pointerData, context, buffer, written, depth + 1);
+				return nextIndex;
 			}
 
-			if (labelLength > 63)
+			if (labelLength > MAX_LABEL_LENGTH)
 				throw new IllegalArgumentException("Label too long: " + labelLength);
+			if (written + labelLength + 2 > buffer.length)
+				throw new IllegalArgumentException("Name too long");
 
-			for (int i=0; i<labelLength; i++) {
-				builder.append((char) data.get(NETWORK_BYTE, nextIndex++));
-			}
+			buffer[written++] = (byte) labelLength;
+			MemorySegment.copy(data, NETWORK_BYTE, nextIndex, buffer, written, labelLength);
+			written += labelLength;
+			nextIndex += labelLength;
 
 			labelLength = Byte.toUnsignedInt(data.get(NETWORK_BYTE, nextIndex++));
-			builder.append('.');
 		}
 
-		return new ParsedDomainName(new DomainName(builder.toString()), nextIndex);
+		buffer[written] = 0;
+		return nextIndex;
 	}
 
+	/**
+	 * The name in wire format. The array is shared and must not be modified.
+	 */
 	public byte[] bytes() {
-		byte[] bytes = new byte[byteSize()];
-		MemorySegment segment = MemorySegment.ofArray(bytes);
-		apply(segment);
 		return bytes;
 	}
 
+	/**
+	 * Hashes a name in wire format, ignoring ASCII case, consistently with {@link #equalsIgnoreCase}.
+	 */
+	public static int hashIgnoreCase(MemorySegment segment, long offset, int length) {
+		int hash = 0;
+		for (int i = 0; i < length; i++)
+			hash = 31 * hash + toLowerCase(segment.get(NETWORK_BYTE, offset + i));
+		return hash;
+	}
+
+	/**
+	 * Compares two names in wire format of the same length, ignoring ASCII case.
+	 * Neither may be compressed.
+	 */
+	public static boolean equalsIgnoreCase(MemorySegment a, long aOffset, MemorySegment b, long bOffset, int length) {
+		for (int i = 0; i < length; i++)
+			if (toLowerCase(a.get(NETWORK_BYTE, aOffset + i)) != toLowerCase(b.get(NETWORK_BYTE, bOffset + i)))
+				return false;
+		return true;
+	}
+
+	private static byte toLowerCase(byte b) {
+		// label lengths are at most 63, so they are never mistaken for letters
+		return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof DomainName other && hash == other.hash && Arrays.equals(bytes, other.bytes);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return "DomainName[name=" + name() + "]";
+	}
+
 	public static final DomainName ROOT = new DomainName(".");
 }
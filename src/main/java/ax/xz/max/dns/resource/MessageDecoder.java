@@ -0,0 +1,232 @@
+package ax.xz.max.dns.resource;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.lang.foreign.ValueLayout.*;
+import static java.nio.ByteOrder.BIG_ENDIAN;
+
+/**
+ * Decodes a whole message in a single pass, checking every offset against the end of the message.
+ * <p>
+ * Every name is memoized by the offset of each of its labels, so that a compression pointer to any name or suffix
+ * already decoded, such as {@code example.com} inside an earlier {@code www.example.com}, is found in a hash table
+ * rather than walked again. A suffix is only copied out of its name the first time a pointer refers to it,
+ * and later pointers share that instance.
+ * A pointer must point before the start of the name that contains it, which rules out loops;
+ * names are held to 255 bytes, labels to 63, and chains of pointers to {@value #MAX_POINTERS}.
+ * <p>
+ * Records of unsupported types are skipped in every section, and the header's counts are adjusted to match,
+ * so that responses from other servers can be decoded too.
+ * Names inside CNAME and NS records may be compressed.
+ * <p>
+ * A decoder is meant for a single message, on a single thread.
+ */
+public final class MessageDecoder {
+	private static final ValueLayout.OfByte NETWORK_BYTE = JAVA_BYTE.withByteAlignment(1).withOrder(BIG_ENDIAN);
+	private static final ValueLayout.OfShort NETWORK_SHORT = JAVA_SHORT.withByteAlignment(1).withOrder(BIG_ENDIAN);
+	private static final ValueLayout.OfInt NETWORK_INT = JAVA_INT.withByteAlignment(1).withOrder(BIG_ENDIAN);
+
+	private static final int HEADER_SIZE = 12;
+	private static final int MAX_NAME_LENGTH = 255;
+	private static final int MAX_POINTERS = 127; // as many as a name can have labels
+
+	private final MemorySegment message;
+	private final long limit;
+
+	// open addressing, from offsets + 1 to the names decoded there, or to names whose suffix starts there
+	private int[] memoOffsets = new int[32];
+	private DomainName[] memoNames = new DomainName[memoOffsets.length];
+	private int[] memoSuffixStarts = new int[memoOffsets.length]; // where in the name the suffix starts, or 0 for the whole name
+	private int memoSize = 0;
+
+	private int nameEnd; // where the name read last ended, at its original position
+
+	public MessageDecoder(MemorySegment message) {
+		this.message = message;
+		this.limit = message.byteSize();
+	}
+
+	public static DNSMessage decode(MemorySegment message) {
+		return new MessageDecoder(message).decodeMessage();
+	}
+
+	public DNSMessage decodeMessage() {
+		require(0, HEADER_SIZE);
+		var header = DNSHeader.fromData(message);
+		int offset = HEADER_SIZE;
+
+		var queries = new ArrayList<DNSQuery>(Short.toUnsignedInt(header.numQuestions()));
+		for (int i = 0; i < Short.toUnsignedInt(header.numQuestions()); i++) {
+			var name = readName(offset);
+			offset = nameEnd;
+
+			require(offset, 4);
+			queries.add(new DNSQuery(name, message.get(NETWORK_SHORT, offset), message.get(NETWORK_SHORT, offset + 2)));
+			offset += 4;
+		}
+
+		var answers = new ArrayList<ResourceRecord>();
+		var authorities = new ArrayList<ResourceRecord>();
+		var additional = new ArrayList<ResourceRecord>();
+		offset = readRecords(offset, header.numAnswers(), answers);
+		offset = readRecords(offset, header.numNS(), authorities);
+		readRecords(offset, header.numAdditional(), additional);
+
+		header = header.withCounts((short) answers.size(), (short) authorities.size(), (short) additional.size());
+		return new DNSMessage(header, queries, answers, authorities, additional);
+	}
+
+	private int readRecords(int offset, short count, List<ResourceRecord> records) {
+		for (int i = 0; i < Short.toUnsignedInt(count); i++) {
+			var name = readName(offset);
+			offset = nameEnd;
+
+			require(offset, 10);
+			short type = message.get(NETWORK_SHORT, offset);
+			short classID = message.get(NETWORK_SHORT, offset + 2);
+			int timeToLive = message.get(NETWORK_INT, offset + 4);
+			int dataLength = Short.toUnsignedInt(message.get(NETWORK_SHORT, offset + 8));
+			int dataOffset = offset + 10;
+			require(dataOffset, dataLength);
+			offset = dataOffset + dataLength;
+
+			var record = switch (type) {
+				case CNameRecord.ID -> new CNameRecord(name, timeToLive, readDataName(dataOffset, offset));
+				case NSRecord.ID -> new NSRecord(name, timeToLive, readDataName(dataOffset, offset));
+				default -> ResourceRecord.isSupported(type)
+						? ResourceRecord.fromData(name, type, classID, timeToLive, message.asSlice(dataOffset, dataLength))
+						: null;
+			};
+			if (record != null)
+				records.add(record);
+		}
+		return offset;
+	}
+
+	/**
+	 * Reads a name held within record data, which must not run past the end of the data.
+	 */
+	private DomainName readDataName(int offset, int dataEnd) {
+		var name = readName(offset);
+		if (nameEnd > dataEnd) throw new IllegalArgumentException("Name runs past the end of its record");
+		return name;
+	}
+
+	/**
+	 * Reads the name at an offset, and sets {@link #nameEnd} to the offset just past it.
+	 */
+	private DomainName readName(int offset) {
+		return readName(offset, 0, 0);
+	}
+
+	/**
+	 * @param pointers how many compression pointers were followed to get here
+	 * @param suffixOf how many bytes of the name have been read before getting here
+	 */
+	private DomainName readName(int start, int pointers, int suffixOf) {
+		int offset = start;
+		DomainName suffix = null;
+		while (true) {
+			require(offset, 1);
+			int labelLength = Byte.toUnsignedInt(message.get(NETWORK_BYTE, offset));
+
+			if (labelLength == 0) {
+				nameEnd = offset + 1;
+				break;
+			}
+
+			if ((labelLength & 0b1100_0000) == 0b1100_0000) {
+				require(offset, 2);
+				int pointer = ((labelLength & 0b0011_1111) << 8) | Byte.toUnsignedInt(message.get(NETWORK_BYTE, offset + 1));
+				if (pointer >= start) throw new IllegalArgumentException("Compression pointer does not point backwards: " + pointer);
+				if (pointers >= MAX_POINTERS) throw new IllegalArgumentException("Too many compression pointers");
+
+				suffix = memoized(pointer);
+				if (suffix == null)
+					suffix = readName(pointer, pointers + 1, suffixOf + offset - start);
+				nameEnd = offset + 2;
+				break;
+			}
+
+			if ((labelLength & 0b1100_0000) != 0) throw new IllegalArgumentException("Unsupported label type: " + labelLength);
+
+			offset += 1 + labelLength;
+			if (suffixOf + offset - start + 1 > MAX_NAME_LENGTH) throw new IllegalArgumentException("Name too long");
+		}
+
+		// the labels up to here are contiguous in the message, so they are copied in one go
+		int prefixLength = offset - start;
+		byte[] bytes = new byte[prefixLength + (suffix == null ? 1 : suffix.byteSize())];
+		if (bytes.length > MAX_NAME_LENGTH) throw new IllegalArgumentException("Name too long");
+
+		MemorySegment.copy(message, JAVA_BYTE, start, bytes, 0, prefixLength);
+		if (suffix != null)
+			System.arraycopy(suffix.bytes(), 0, bytes, prefixLength, suffix.byteSize());
+
+		if (prefixLength == 0 && suffix != null) {
+			memoize(start, suffix, 0);
+			return suffix;
+		}
+
+		var name = DomainName.fromWireFormat(bytes);
+		for (int labelStart = 0; labelStart < prefixLength; labelStart += 1 + bytes[labelStart])
+			memoize(start + labelStart, name, labelStart);
+		return name;
+	}
+
+	private void require(long offset, long length) {
+		if (offset + length > limit) throw new IllegalArgumentException("Message truncated at offset " + offset);
+	}
+
+	private static int slotOf(int offset, int mask) {
+		return (offset * 0x9E3779B9 >>> 16) & mask;
+	}
+
+	private DomainName memoized(int offset) {
+		int mask = memoOffsets.length - 1;
+		for (int slot = slotOf(offset, mask); memoOffsets[slot] != 0; slot = (slot + 1) & mask) {
+			if (memoOffsets[slot] != offset + 1) continue;
+
+			int suffixStart = memoSuffixStarts[slot];
+			if (suffixStart != 0) {
+				byte[] bytes = memoNames[slot].bytes();
+				memoNames[slot] = DomainName.fromWireFormat(Arrays.copyOfRange(bytes, suffixStart, bytes.length));
+				memoSuffixStarts[slot] = 0;
+			}
+			return memoNames[slot];
+		}
+		return null;
+	}
+
+	/**
+	 * @param suffixStart where in the name the suffix at the offset starts, or 0 if the whole name is there
+	 */
+	private void memoize(int offset, DomainName name, int suffixStart) {
+		if ((memoSize + 1) * 2 > memoOffsets.length) {
+			var oldOffsets = memoOffsets;
+			var oldNames = memoNames;
+			var oldSuffixStarts = memoSuffixStarts;
+			memoOffsets = new int[oldOffsets.length * 2];
+			memoNames = new DomainName[memoOffsets.length];
+			memoSuffixStarts = new int[memoOffsets.length];
+			memoSize = 0;
+			for (int i = 0; i < oldOffsets.length; i++)
+				if (oldOffsets[i] != 0) memoize(oldOffsets[i] - 1, oldNames[i], oldSuffixStarts[i]);
+		}
+
+		int mask = memoOffsets.length - 1;
+		int slot = slotOf(offset, mask);
+		while (memoOffsets[slot] != 0) {
+			if (memoOffsets[slot] == offset + 1) return;
+			slot = (slot + 1) & mask;
+		}
+		memoOffsets[slot] = offset + 1;
+		memoNames[slot] = name;
+		memoSuffixStarts[slot] = suffixStart;
+		memoSize++;
+	}
+}
@@ -0,0 +1,236 @@
+package ax.xz.max.dns.resource;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+import static java.nio.ByteOrder.BIG_ENDIAN;
+
+/**
+ * A read-only view of a message in wire format, whose fields are read from the segment when asked for.
+ * <p>
+ * A view exposes the header, the first question and the OPT record, which is all it takes to answer a query from a cache.
+ * Creating one walks the message once to find them, but allocates nothing else;
+ * {@link #toMessage()} parses the whole message when more is needed.
+ * The view must not outlive the segment's contents.
+ */
+public final class MessageView {
+	private static final ValueLayout.OfByte NETWORK_BYTE = JAVA_BYTE.withByteAlignment(1).withOrder(BIG_ENDIAN);
+	private static final ValueLayout.OfShort NETWORK_SHORT = JAVA_SHORT.withByteAlignment(1).withOrder(BIG_ENDIAN);
+
+	private static final int HEADER_SIZE = 12;
+	private static final int NO_OFFSET = -1;
+
+	private final MemorySegment message;
+	private final int questionNameEnd; // NO_OFFSET if the first question is missing or compressed
+	private final int optOffset; // the OPT record's type field, or NO_OFFSET
+	private final int optCount;
+
+	private MemorySegment questionName; // sliced on first use
+
+	private MessageView(MemorySegment message, int questionNameEnd, int optOffset, int optCount) {
+		this.message = message;
+		this.questionNameEnd = questionNameEnd;
+		this.optOffset = optOffset;
+		this.optCount = optCount;
+	}
+
+	/**
+	 * Finds the first question and the OPT record of a message.
+	 *
+	 * @throws IllegalArgumentException if the message is shorter than its header says
+	 */
+	public static MessageView of(MemorySegment message) {
+		if (message.byteSize() < HEADER_SIZE) throw new IllegalArgumentException("Message shorter than its header");
+
+		int questions = Short.toUnsignedInt(message.get(NETWORK_SHORT, 4));
+		int records = Short.toUnsignedInt(message.get(NETWORK_SHORT, 6)) + Short.toUnsignedInt(message.get(NETWORK_SHORT, 8));
+		int additional = Short.toUnsignedInt(message.get(NETWORK_SHORT, 10));
+
+		int questionNameEnd = questions > 0 ? uncompressedNameEnd(message, HEADER_SIZE) : NO_OFFSET;
+
+		int offset = HEADER_SIZE;
+		for (int i = 0; i < questions; i++)
+			offset = checkBounds(message, skipName(message, offset) + 4);
+
+		int optOffset = NO_OFFSET;
+		int optCount = 0;
+		for (int i = 0; i < records + additional; i++) {
+			int trailer = checkBounds(message, skipName(message, offset) + 10);
+			if (i >= records && message.get(NETWORK_SHORT, trailer - 10) == OPTRecord.ID) {
+				optOffset = trailer - 10;
+				optCount++;
+			}
+
+			offset = checkBounds(message, trailer + Short.toUnsignedInt(message.get(NETWORK_SHORT, trailer - 2)));
+		}
+
+		return new MessageView(message, questionNameEnd, optOffset, optCount);
+	}
+
+	private static int checkBounds(MemorySegment message, int offset) {
+		if (offset > message.byteSize()) throw new IllegalArgumentException("Message shorter than its header says");
+		return offset;
+	}
+
+	/**
+	 * @return the offset just past the name starting at {@code offset}, which may end in a compression pointer
+	 */
+	private static int skipName(MemorySegment message, int offset) {
+		while (true) {
+			checkBounds(message, offset + 1);
+			int length = Byte.toUnsignedInt(message.get(NETWORK_BYTE, offset));
+			if ((length & 0b1100_0000) != 0) return offset + 2;
+			offset += length + 1;
+			if (length == 0) return offset;
+		}
+	}
+
+	/**
+	 * @return the offset just past the name starting at {@code offset}, or {@link #NO_OFFSET} if it is compressed or cut off
+	 */
+	private static int uncompressedNameEnd(MemorySegment message, int offset) {
+		while (offset < message.byteSize()) {
+			int length = Byte.toUnsignedInt(message.get(NETWORK_BYTE, offset));
+			if ((length & 0b1100_0000) != 0) return NO_OFFSET;
+			offset += length + 1;
+			if (length == 0) return offset;
+		}
+		return NO_OFFSET;
+	}
+
+	public MemorySegment segment() {
+		return message;
+	}
+
+	public short id() {
+		return message.get(NETWORK_SHORT, 0);
+	}
+
+	public short flags() {
+		return message.get(NETWORK_SHORT, 2);
+	}
+
+	public boolean isResponse() {
+		return (flags() & 0b1000_0000_0000_0000) != 0;
+	}
+
+	public byte opcode() {
+		return (byte) ((flags() & 0b0111_1000_0000_0000) >> 11);
+	}
+
+	public boolean recursionDesired() {
+		return (flags() & 0b0000_0001_0000_0000) != 0;
+	}
+
+	public short numQuestions() {
+		return message.get(NETWORK_SHORT, 4);
+	}
+
+	/**
+	 * Whether the first question can be read from the view.
+	 * It can't if there is none, or if its name is compressed, which a sensible client never does.
+	 */
+	public boolean hasQuestion() {
+		return questionNameEnd != NO_OFFSET;
+	}
+
+	/**
+	 * The offset of the first question's name, which is always right after the header.
+	 */
+	public int questionNameOffset() {
+		return HEADER_SIZE;
+	}
+
+	/**
+	 * The length of the first question's name in wire format.
+	 */
+	public int questionNameLength() {
+		requireQuestion();
+		return questionNameEnd - HEADER_SIZE;
+	}
+
+	/**
+	 * The first question's name in wire format, as the client sent it.
+	 */
+	public MemorySegment questionName() {
+		requireQuestion();
+		if (questionName == null)
+			questionName = message.asSlice(HEADER_SIZE, questionNameEnd - HEADER_SIZE);
+		return questionName;
+	}
+
+	/**
+	 * Hashes the first question's name without regard to case, as {@link DomainName#hashIgnoreCase} does.
+	 */
+	public int questionNameHash() {
+		return DomainName.hashIgnoreCase(message, HEADER_SIZE, questionNameLength());
+	}
+
+	public short questionType() {
+		requireQuestion();
+		return message.get(NETWORK_SHORT, questionNameEnd);
+	}
+
+	public short questionClass() {
+		requireQuestion();
+		return message.get(NETWORK_SHORT, questionNameEnd + 2);
+	}
+
+	private void requireQuestion() {
+		if (!hasQuestion()) throw new IllegalStateException("Message has no readable question");
+	}
+
+	/**
+	 * The number of OPT records; a well-formed message has at most one.
+	 */
+	public int optCount() {
+		return optCount;
+	}
+
+	public boolean hasOpt() {
+		return optCount > 0;
+	}
+
+	/**
+	 * The largest UDP payload the sender can receive, as advertised in its OPT record.
+	 */
+	public int optPayloadSize() {
+		requireOpt();
+		return Short.toUnsignedInt(message.get(NETWORK_SHORT, optOffset + 2));
+	}
+
+	public byte optVersion() {
+		requireOpt();
+		return message.get(NETWORK_BYTE, optOffset + 5);
+	}
+
+	/**
+	 * Whether the sender set the DO bit, asking for DNSSEC records.
+	 */
+	public boolean optDnssecOk() {
+		requireOpt();
+		return (message.get(NETWORK_BYTE, optOffset + 6) & 0b1000_0000) != 0;
+	}
+
+	private void requireOpt() {
+		if (!hasOpt()) throw new IllegalStateException("Message has no OPT record");
+	}
+
+	public DNSHeader header() {
+		return DNSHeader.fromData(message);
+	}
+
+	public DNSQuery question() {
+		requireQuestion();
+		return DNSQuery.fromData(message.asSlice(HEADER_SIZE)).query();
+	}
+
+	/**
+	 * Parses the whole message.
+	 */
+	public DNSMessage toMessage() {
+		return DNSMessage.parseMessage(message);
+	}
+}
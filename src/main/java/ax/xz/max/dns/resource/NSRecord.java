@@ -10,6 +10,11 @@ public record NSRecord(DomainName name, int timeToLive, DomainName nameserver) i
 		nameserver.apply(slice);
 	}
 
+	@Override
+	public int applyData(MemorySegment message, int offset, NameCompressor compressor) {
+		return compressor.apply(nameserver, message, offset);
+	}
+
 	@Override
 	public int dataLength() {
 		return nameserver.byteSize();
@@ -0,0 +1,127 @@
+package ax.xz.max.dns.resource;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+import static java.nio.ByteOrder.BIG_ENDIAN;
+
+/**
+ * Remembers the names written into a message, so that later names can be compressed (RFC 1035, section 4.1.4).
+ * <p>
+ * Every suffix of a name is recorded with its offset in the message,
+ * and a later name ending in the same labels points back to it instead of repeating them.
+ * The table has a fixed capacity and is cleared rather than reallocated between messages,
+ * so an instance can be reused for any number of messages, by one thread at a time.
+ */
+public final class NameCompressor {
+	private static final ValueLayout.OfShort NETWORK_SHORT = JAVA_SHORT.withByteAlignment(1).withOrder(BIG_ENDIAN);
+
+	private static final int CAPACITY = 128; // suffixes remembered per message; names beyond that are written in full
+	private static final int SLOTS = CAPACITY * 2;
+	private static final int MAX_POINTER = 0x3FFF; // pointers have fourteen bits
+	private static final int MAX_LABELS = 128; // a name has at most 255 bytes
+
+	private final int[] slots = new int[SLOTS]; // entry index + 1, or 0 if free
+	private final int[] hashes = new int[CAPACITY];
+	private final DomainName[] names = new DomainName[CAPACITY];
+	private final int[] starts = new int[CAPACITY];
+	private final int[] offsets = new int[CAPACITY];
+	private int size = 0;
+
+	// scratch space for the hash of each suffix of the name being written
+	private final int[] labelHashes = new int[MAX_LABELS];
+
+	/**
+	 * Forgets every name, to start a new message.
+	 */
+	void reset() {
+		if (size == 0) return;
+		Arrays.fill(slots, 0);
+		Arrays.fill(names, 0, size, null);
+		size = 0;
+	}
+
+	/**
+	 * Forgets the names written at or after an offset, for a writer rewinding to it.
+	 */
+	void forget(int offset) {
+		// entries are removed newest first, so no older entry's probe sequence runs through a freed slot
+		while (size > 0 && offsets[size - 1] >= offset) {
+			size--;
+			int slot = slotOf(hashes[size]);
+			while (slots[slot] != size + 1)
+				slot = (slot + 1) & (SLOTS - 1);
+			slots[slot] = 0;
+			names[size] = null;
+		}
+	}
+
+	/**
+	 * Writes a name at an offset within the message, pointing to a suffix written earlier if there is one.
+	 * The names must be written in the order they appear in the message.
+	 *
+	 * @param message the message being written, or {@code null} to only measure
+	 * @return the number of bytes written
+	 */
+	int apply(DomainName name, MemorySegment message, int offset) {
+		byte[] bytes = name.bytes();
+		int labels = name.labelCount();
+
+		// hash every suffix, from the shortest to the longest
+		int hash = 0;
+		int label = labels - 1;
+		for (int i = bytes.length - 2; i >= 0 && label >= 0; i--) {
+			hash = 31 * hash + bytes[i];
+			if (i == name.labelOffset(label))
+				labelHashes[label--] = hash;
+		}
+
+		for (int i = 0; i < labels; i++) {
+			int start = name.labelOffset(i);
+			int pointer = find(name, start, labelHashes[i]);
+			if (pointer >= 0) {
+				if (message != null) {
+					MemorySegment.copy(bytes, 0, message, JAVA_BYTE, offset, start);
+					message.set(NETWORK_SHORT, offset + start, (short) (0xC000 | pointer));
+				}
+				return start + 2;
+			}
+
+			remember(name, start, labelHashes[i], offset + start);
+		}
+
+		if (message != null) MemorySegment.copy(bytes, 0, message, JAVA_BYTE, offset, bytes.length);
+		return bytes.length;
+	}
+
+	private static int slotOf(int hash) {
+		return (hash ^ (hash >>> 16)) & (SLOTS - 1);
+	}
+
+	private int find(DomainName name, int start, int hash) {
+		for (int slot = slotOf(hash); ; slot = (slot + 1) & (SLOTS - 1)) {
+			int entry = slots[slot] - 1;
+			if (entry < 0) return -1;
+
+			if (hashes[entry] == hash && names[entry].suffixEquals(starts[entry], name, start))
+				return offsets[entry];
+		}
+	}
+
+	private void remember(DomainName name, int start, int hash, int offset) {
+		if (size == CAPACITY || offset > MAX_POINTER) return;
+
+		int slot = slotOf(hash);
+		while (slots[slot] != 0)
+			slot = (slot + 1) & (SLOTS - 1);
+
+		hashes[size] = hash;
+		names[size] = name;
+		starts[size] = start;
+		offsets[size] = offset;
+		slots[slot] = ++size;
+	}
+}
@@ -1,8 +1,15 @@
 package ax.xz.max.dns.resource;
 
 import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * The EDNS(0) pseudo-record (RFC 6891), carried in the additional section.
+ *
+ * @param payloadSize the largest UDP payload the sender can receive
+ * @param resultCode the upper eight bits of the extended response code
+ */
 public record OPTRecord(int payloadSize, byte resultCode, byte version, boolean allowsDnssec, List<Option> options) implements ResourceRecord {
 	public OPTRecord {
 		options = List.copyOf(options);
@@ -10,7 +17,10 @@ public record OPTRecord(int payloadSize, byte resultCode, byte version, boolean
 
 	public static final short ID = 41;
 
-	public interface Option { // todo: seal this interface
+	/** The extended response code for an unsupported EDNS version, which doesn't fit in the header */
+	public static final int BAD_VERSION = 16;
+
+	public sealed interface Option permits RawOption {
 		short code();
 		int dataLength();
 		MemorySegment data();
@@ -28,6 +38,21 @@ public record OPTRecord(int payloadSize, byte resultCode, byte version, boolean
 		}
 	}
 
+	/**
+	 * An option whose contents are kept as they were received.
+	 */
+	public record RawOption(short code, byte[] bytes) implements Option {
+		@Override
+		public int dataLength() {
+			return bytes.length;
+		}
+
+		@Override
+		public MemorySegment data() {
+			return MemorySegment.ofArray(bytes);
+		}
+	}
+
 	public DomainName name() {
 		return DomainName.ROOT;
 	}
@@ -39,8 +64,8 @@ public record OPTRecord(int payloadSize, byte resultCode, byte version, boolean
 
 	@Override
 	public int timeToLive() {
-		return resultCode << 24
-				| version << 16
+		return Byte.toUnsignedInt(resultCode) << 24
+				| Byte.toUnsignedInt(version) << 16
 				| (allowsDnssec ? 1 : 0) << 15;
 	}
 
@@ -63,13 +88,38 @@ public record OPTRecord(int payloadSize, byte resultCode, byte version, boolean
 		return total;
 	}
 
+	/**
+	 * The full response code, combining this record's upper bits with the header's lower bits.
+	 */
+	public int extendedResponseCode(DNSHeader header) {
+		return Byte.toUnsignedInt(resultCode) << 4 | header.responseCode();
+	}
+
 	public static OPTRecord fromData(short classID, int timeToLive, MemorySegment recordData) {
 		return new OPTRecord(
 				Short.toUnsignedInt(classID),
-				(byte) ((timeToLive & 0b1111_1111_0000_0000_0000_0000_0000_0000) >> 24),
+				(byte) ((timeToLive & 0b1111_1111_0000_0000_0000_0000_0000_0000) >>> 24),
 				(byte) ((timeToLive & 0b0000_0000_1111_1111_0000_0000_0000_0000) >> 16),
 				(timeToLive & 0b0000_0000_0000_0000_1000_0000_0000_0000) != 0,
-				List.of() // todo: parse
+				parseOptions(recordData)
 		);
 	}
+
+	private static List<Option> parseOptions(MemorySegment recordData) {
+		var options = new ArrayList<Option>();
+
+		long offset = 0;
+		while (offset < recordData.byteSize()) {
+			if (recordData.byteSize() - offset < 4) throw new IllegalArgumentException("Truncated EDNS option");
+
+			short code = recordData.get(NETWORK_SHORT, offset);
+			int length = Short.toUnsignedInt(recordData.get(NETWORK_SHORT, offset + 2));
+			if (recordData.byteSize() - offset - 4 < length) throw new IllegalArgumentException("Truncated EDNS option");
+
+			options.add(new RawOption(code, recordData.asSlice(offset + 4, length).toArray(NETWORK_BYTE)));
+			offset += 4 + length;
+		}
+
+		return options;
+	}
 }
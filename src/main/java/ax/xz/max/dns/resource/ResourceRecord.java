@@ -40,6 +40,13 @@ public sealed interface ResourceRecord permits ARecord, AAAARecord, CNameRecord,
 		};
 	}
 
+	static boolean isSupported(short type) {
+		return switch (type) {
+			case ARecord.ID, AAAARecord.ID, NSRecord.ID, CNameRecord.ID, OPTRecord.ID -> true;
+			default -> false;
+		};
+	}
+
 	static ResourceRecord fromData(DomainName name, short type, int timeToLive, MemorySegment recordData) {
 		return fromData(name, type, (short) 1, timeToLive, recordData);
 	}
@@ -70,12 +77,57 @@ public sealed interface ResourceRecord permits ARecord, AAAARecord, CNameRecord,
 		applyData(rdataSlice);
 	}
 
+	/**
+	 * Writes this record at an offset within a whole message, compressing its names against those written before it.
+	 *
+	 * @param message the message being written, or {@code null} to only measure
+	 * @return the number of bytes written
+	 */
+	default int apply(MemorySegment message, int offset, NameCompressor compressor) {
+		int nameLength = compressor.apply(name(), message, offset);
+		int trailerOffset = offset + nameLength;
+		int dataLength = applyData(message, trailerOffset + 10, compressor);
+
+		if (message != null) {
+			message.set(NETWORK_SHORT, trailerOffset, type()); // type
+			message.set(NETWORK_SHORT, trailerOffset + 2, classID()); // class
+			message.set(NETWORK_INT,   trailerOffset + 4, timeToLive()); // ttl
+			message.set(NETWORK_SHORT, trailerOffset + 8, (short) dataLength); // rdlength
+		}
+
+		return nameLength + 10 + dataLength;
+	}
+
+	/**
+	 * Writes this record's data at an offset within a whole message.
+	 * Records whose data holds a name may compress it.
+	 *
+	 * @param message the message being written, or {@code null} to only measure
+	 * @return the number of bytes written
+	 */
+	default int applyData(MemorySegment message, int offset, NameCompressor compressor) {
+		if (message != null) applyData(message.asSlice(offset, dataLength()));
+		return dataLength();
+	}
+
 	record ParsedResourceRecord(ResourceRecord record, int bytesParsed) {}
 
 	/**
 	 * Parses a DNS answer from the start of a memory segment.
 	 */
 	static ParsedResourceRecord parseFrom(MemorySegment slice, MemorySegment context) {
+		var parsed = parseOrSkip(slice, context);
+		if (parsed.record() == null)
+			throw new IllegalArgumentException("Unknown record type: " + slice.get(NETWORK_SHORT, DomainName.fromData(slice, context).bytesParsed()));
+		return parsed;
+	}
+
+	/**
+	 * Parses a DNS answer like {@link #parseFrom}, but skips over records of {@linkplain #isSupported unsupported} types.
+	 *
+	 * @return the record parsed, whose record is {@code null} if it was skipped
+	 */
+	static ParsedResourceRecord parseOrSkip(MemorySegment slice, MemorySegment context) {
 		var name = DomainName.fromData(slice, context);
 		MemorySegment trailer = slice.asSlice(name.bytesParsed(), 10);
 		short type = trailer.get(NETWORK_SHORT, 0);
@@ -84,6 +136,9 @@ public sealed interface ResourceRecord permits ARecord, AAAARecord, CNameRecord,
 		int dataLength = Short.toUnsignedInt(trailer.get(NETWORK_SHORT, 8));
 		MemorySegment recordData = slice.asSlice(name.bytesParsed() + 10, dataLength);
 		int totalLength = name.bytesParsed() + 10 + dataLength;
+		if (!isSupported(type))
+			return new ParsedResourceRecord(null, totalLength);
+
 		ResourceRecord record = fromData(name.domainName(), type, classID, timeToLive, recordData);
 		return new ParsedResourceRecord(record, totalLength);
 	}
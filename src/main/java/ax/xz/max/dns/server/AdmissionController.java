@@ -0,0 +1,89 @@
+package ax.xz.max.dns.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds how many queries may be resolved against the repository at once,
+ * so that excess load is rejected straight away instead of queueing behind a slow database.
+ * <p>
+ * With a target latency, the limit adapts to observed lookup latency by additive increase and multiplicative decrease:
+ * every lookup slower than the target shrinks the limit by a tenth,
+ * and every faster one that finds the limit at least half used grows it by one.
+ * Without a target latency, the limit stays at its maximum.
+ */
+public final class AdmissionController {
+	private static final double BACKOFF_RATIO = 0.9;
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final long targetLatencyNanos;
+
+	private final AtomicInteger limit;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final LongAdder admitted = new LongAdder();
+	private final LongAdder shed = new LongAdder();
+
+	/**
+	 * @param targetLatencyNanos the lookup latency to aim for, or 0 to keep the limit fixed at {@code maxLimit}
+	 */
+	AdmissionController(int minLimit, int maxLimit, long targetLatencyNanos) {
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.targetLatencyNanos = targetLatencyNanos;
+		this.limit = new AtomicInteger(maxLimit);
+	}
+
+	/**
+	 * Admits a query if the limit allows it.
+	 * Every admitted query must be {@linkplain #release released}.
+	 */
+	boolean tryAcquire() {
+		while (true) {
+			int current = inFlight.get();
+			if (current >= limit.get()) {
+				shed.increment();
+				return false;
+			}
+			if (inFlight.compareAndSet(current, current + 1)) {
+				admitted.increment();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Marks an admitted query as resolved.
+	 *
+	 * @param latencyNanos how long its lookup took
+	 */
+	void release(long latencyNanos) {
+		int current = inFlight.getAndDecrement();
+		if (targetLatencyNanos == 0) return;
+
+		if (latencyNanos > targetLatencyNanos)
+			limit.updateAndGet(l -> Math.max(minLimit, (int) (l * BACKOFF_RATIO)));
+		else if (current * 2 >= limit.get())
+			limit.updateAndGet(l -> Math.min(maxLimit, l + 1));
+	}
+
+	/** The current concurrency limit */
+	public int limit() {
+		return limit.get();
+	}
+
+	/** Queries currently being resolved */
+	public int inFlight() {
+		return inFlight.get();
+	}
+
+	/** Queries admitted so far */
+	public long admitted() {
+		return admitted.sum();
+	}
+
+	/** Queries rejected so far for exceeding the limit */
+	public long shed() {
+		return shed.sum();
+	}
+}
@@ -0,0 +1,174 @@
+package ax.xz.max.dns.server;
+
+import ax.xz.max.dns.resource.DNSWriter;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of fixed-size native buffers, striped by thread to limit contention.
+ * <p>
+ * Native memory is allocated lazily, up to {@code maxBuffers} buffers,
+ * and is reclaimed by the garbage collector once the pool is closed and its buffers are unreachable.
+ * Once every buffer is in use, or when a larger buffer is requested,
+ * callers receive a temporary heap buffer instead, which is counted as a miss.
+ * <p>
+ * Each native buffer comes with its own {@link DNSWriter},
+ * so that responses written into pooled buffers reuse their writers and compression tables too.
+ */
+public final class BufferPool implements AutoCloseable {
+	private final Arena arena = Arena.ofAuto(); // channels reject buffers from closeable shared arenas
+	private final int bufferSize;
+	private final int maxBuffers;
+	private final ConcurrentLinkedQueue<Slot>[] stripes;
+
+	private final AtomicInteger allocated = new AtomicInteger();
+	private final AtomicInteger inUse = new AtomicInteger();
+	private final AtomicInteger highWaterMark = new AtomicInteger();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private volatile boolean isClosed = false;
+
+	@SuppressWarnings("unchecked")
+	BufferPool(int bufferSize, int maxBuffers) {
+		this.bufferSize = bufferSize;
+		this.maxBuffers = maxBuffers;
+
+		int stripeCount = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2));
+		this.stripes = new ConcurrentLinkedQueue[stripeCount];
+		for (int i = 0; i < stripeCount; i++)
+			stripes[i] = new ConcurrentLinkedQueue<>();
+	}
+
+	private int stripeIndex() {
+		return (int) (Thread.currentThread().threadId() & (stripes.length - 1));
+	}
+
+	/**
+	 * Acquires a buffer of {@link #bufferSize()} bytes.
+	 */
+	PooledBuffer acquire() {
+		return acquire(bufferSize);
+	}
+
+	/**
+	 * Acquires a buffer of at least {@code minimumSize} bytes.
+	 * Its contents are unspecified.
+	 */
+	PooledBuffer acquire(long minimumSize) {
+		if (isClosed) throw new IllegalStateException("Buffer pool is closed");
+
+		Slot slot = minimumSize <= bufferSize ? poll() : null;
+		if (slot != null) {
+			hits.increment();
+		} else {
+			misses.increment();
+			slot = minimumSize <= bufferSize ? allocate() : null;
+		}
+
+		if (slot == null) // pool exhausted, or oversized request
+			return new PooledBuffer(new Slot(MemorySegment.ofArray(new byte[(int) Math.max(minimumSize, bufferSize)]), new DNSWriter()), false);
+
+		int current = inUse.incrementAndGet();
+		highWaterMark.accumulateAndGet(current, Math::max);
+		return new PooledBuffer(slot, true);
+	}
+
+	private Slot poll() {
+		int start = stripeIndex();
+		for (int i = 0; i < stripes.length; i++) {
+			var slot = stripes[(start + i) & (stripes.length - 1)].poll();
+			if (slot != null) return slot;
+		}
+		return null;
+	}
+
+	private Slot allocate() {
+		if (allocated.incrementAndGet() > maxBuffers) {
+			allocated.decrementAndGet();
+			return null;
+		}
+
+		try {
+			return new Slot(arena.allocate(bufferSize, 8), new DNSWriter());
+		} catch (RuntimeException e) {
+			allocated.decrementAndGet();
+			return null; // out of native memory
+		}
+	}
+
+	private void release(Slot slot) {
+		inUse.decrementAndGet();
+		if (!isClosed)
+			stripes[stripeIndex()].offer(slot);
+	}
+
+	int bufferSize() {
+		return bufferSize;
+	}
+
+	public Statistics statistics() {
+		return new Statistics(
+				hits.sum(),
+				misses.sum(),
+				inUse.get(),
+				highWaterMark.get(),
+				(long) allocated.get() * bufferSize,
+				(long) maxBuffers * bufferSize
+		);
+	}
+
+	/**
+	 * @param hits acquisitions served by a recycled native buffer
+	 * @param misses acquisitions that had to allocate, either natively or on the heap
+	 * @param inUse native buffers currently acquired
+	 * @param highWaterMark the most native buffers ever acquired at once
+	 * @param allocatedBytes native memory allocated so far
+	 * @param capacityBytes the most native memory the pool will ever allocate
+	 */
+	public record Statistics(long hits, long misses, int inUse, int highWaterMark, long allocatedBytes, long capacityBytes) {}
+
+	@Override
+	public void close() {
+		if (isClosed) return;
+		isClosed = true;
+		for (var stripe : stripes) stripe.clear();
+	}
+
+	private record Slot(MemorySegment segment, DNSWriter writer) {}
+
+	/** A buffer that returns itself to the pool when closed */
+	final class PooledBuffer implements AutoCloseable {
+		private final Slot slot;
+		private final boolean pooled;
+		private boolean released = false;
+
+		private PooledBuffer(Slot slot, boolean pooled) {
+			this.slot = slot;
+			this.pooled = pooled;
+		}
+
+		MemorySegment segment() {
+			if (released) throw new IllegalStateException("Buffer has already been released");
+			return slot.segment();
+		}
+
+		/**
+		 * The writer that belongs to this buffer, for writing a response into it.
+		 */
+		DNSWriter writer() {
+			if (released) throw new IllegalStateException("Buffer has already been released");
+			return slot.writer();
+		}
+
+		@Override
+		public void close() {
+			if (released) return;
+			released = true;
+			if (pooled) release(slot);
+		}
+	}
+}
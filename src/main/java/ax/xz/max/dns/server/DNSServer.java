@@ -5,60 +5,223 @@ import ax.xz.max.dns.resource.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.time.Duration;
-import java.time.Instant;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class DNSServer implements AutoCloseable {
+	/** Stands in for a client subnet when responses must not be rate limited, as over TCP */
+	private static final long NO_SUBNET = 0; // real subnets are tagged with their address family
+	private static final int MAX_TCP_MESSAGE_SIZE = 65535; // the most a length prefix can describe
+
 	private final Logger logger;
 	private final ExecutorService executor;
+	private final ExecutorService nativeExecutor;
 	private final ResourceRepository repository;
+	private final ServerConfiguration configuration;
+	private final BufferPool bufferPool;
+	private final SelectorTcpEngine selectorEngine;
+	private final ResponseCache responseCache;
+	private final ResponseRateLimiter rateLimiter;
+	private final AdmissionController admissionController;
+	private final Semaphore connectionPermits;
+	private final LongAdder rejectedConnections = new LongAdder();
+	private final ServerMetrics metrics = new ServerMetrics();
+	private final List<ShardStatistics> shardStatistics = new ArrayList<>();
 
 	public DNSServer(ResourceRepository repository) {
 		this(repository, Thread.ofVirtual().factory());
 	}
 
 	public DNSServer(ResourceRepository repository, ThreadFactory threadFactory) {
-		this.repository = repository;
-		this.logger = LoggerFactory.getLogger(DNSServer.class);
-		this.executor = Executors.newThreadPerTaskExecutor(threadFactory);
-
-		var address = new InetSocketAddress(53);
-
-		executor.submit(() -> runDatagramServer(address));
-		executor.submit(() -> runSocketServer(address));
+		this(repository, threadFactory, Set.of(new InetSocketAddress(53)));
 	}
 
 	public DNSServer(ResourceRepository repository, ThreadFactory threadFactory, Set<InetSocketAddress> addresses) {
+		this(repository, threadFactory, addresses, ServerConfiguration.DEFAULT);
+	}
+
+	public DNSServer(ResourceRepository repository, ThreadFactory threadFactory, Set<InetSocketAddress> addresses, ServerConfiguration configuration) {
 		this.repository = repository;
+		this.configuration = configuration;
+		this.bufferPool = new BufferPool(configuration.bufferSize(), configuration.maxPooledBuffers());
+		this.responseCache = new ResponseCache(configuration.responseCacheBytes());
+		this.rateLimiter = configuration.rrlResponsesPerSecond() > 0
+				? new ResponseRateLimiter(configuration.rrlResponsesPerSecond(), configuration.rrlBurst(), configuration.rrlSlip(), configuration.rrlTableSize())
+				: null;
+		this.admissionController = configuration.admissionMaxConcurrency() > 0
+				? new AdmissionController(
+						Math.min(configuration.admissionMinConcurrency(), configuration.admissionMaxConcurrency()),
+						configuration.admissionMaxConcurrency(),
+						configuration.admissionTargetLatency().toNanos())
+				: null;
+		this.connectionPermits = new Semaphore(configuration.tcpMaxConnections());
 		this.logger = LoggerFactory.getLogger(DNSServer.class);
 		this.executor = Executors.newThreadPerTaskExecutor(threadFactory);
+		repository.addWriteListener(responseCache::invalidate);
+		this.nativeExecutor = Executors.newThreadPerTaskExecutor(Thread.ofPlatform().name("dns-udp-native-", 0).daemon().factory());
+
+		this.selectorEngine = configuration.tcpEngine() == ServerConfiguration.TcpEngine.SELECTOR
+				? openSelectorEngine()
+				: null;
 
 		for (var address : addresses) {
-			executor.submit(() -> runDatagramServer(address));
-			executor.submit(() -> runSocketServer(address));
+			startDatagramServers(address);
+			startSocketServer(address);
+		}
+
+		if (!configuration.shardReportInterval().isZero())
+			executor.submit(this::reportShardRates);
+		if (!configuration.metricsReportInterval().isZero())
+			executor.submit(this::reportMetrics);
+	}
+
+	/**
+	 * Samples the query rate of every UDP shard since the previous sample.
+	 */
+	public List<ShardStatistics.Rate> sampleShardRates() {
+		return shardStatistics.stream()
+				.map(ShardStatistics::sample)
+				.toList();
+	}
+
+	public BufferPool.Statistics bufferPoolStatistics() {
+		return bufferPool.statistics();
+	}
+
+	public ResponseCache responseCache() {
+		return responseCache;
+	}
+
+	public ServerMetrics metrics() {
+		return metrics;
+	}
+
+	/**
+	 * Writes this server's counters for a {@link MetricsEndpoint} scrape.
+	 */
+	public void writeMetrics(MetricsEndpoint.Writer writer) {
+		for (var protocol : ServerMetrics.Protocol.values())
+			for (int responseCode = 0; responseCode < ServerMetrics.RESPONSE_CODES; responseCode++) {
+				long responses = metrics.responses(protocol, responseCode);
+				if (responses > 0 || responseCode == 0)
+					writer.counter("dns_responses_total", "Responses sent, by transport and response code", responses,
+							"protocol", protocol.name().toLowerCase(), "rcode", Integer.toString(responseCode));
+			}
+
+		for (var series : metrics.snapshot())
+			writer.summary("dns_stage_latency_seconds", "Time spent in each stage of answering a query", series.latency(),
+					"protocol", series.protocol().name().toLowerCase(),
+					"stage", series.stage().name().toLowerCase(),
+					"qtype", series.type() == null ? "other" : Integer.toString(series.type()));
+
+		for (var shard : shardStatistics)
+			writer.counter("dns_udp_shard_queries_total", "Datagrams received by each UDP shard", shard.totalQueries(),
+					"address", shard.address().getAddress().getHostAddress() + ":" + shard.address().getPort(), "shard", Integer.toString(shard.shard()));
+		for (var shard : shardStatistics)
+			writer.counter("dns_udp_shard_drops_total", "Datagrams dropped by each UDP shard because its queue was full", shard.totalDrops(),
+					"address", shard.address().getAddress().getHostAddress() + ":" + shard.address().getPort(), "shard", Integer.toString(shard.shard()));
+
+		var pool = bufferPool.statistics();
+		writer.counter("dns_buffer_pool_hits_total", "Buffer acquisitions served by a recycled native buffer", pool.hits());
+		writer.counter("dns_buffer_pool_misses_total", "Buffer acquisitions that had to allocate", pool.misses());
+		writer.gauge("dns_buffer_pool_in_use", "Native buffers currently acquired", pool.inUse());
+		writer.gauge("dns_buffer_pool_allocated_bytes", "Native memory allocated by the buffer pool", pool.allocatedBytes());
+
+		writer.counter("dns_response_cache_hits_total", "Queries answered from the response cache", responseCache.hits());
+		writer.counter("dns_response_cache_misses_total", "Cacheable queries not found in the response cache", responseCache.misses());
+		writer.gauge("dns_response_cache_entries", "Responses in the response cache", responseCache.size());
+		writer.gauge("dns_response_cache_bytes", "Approximate memory used by the response cache", responseCache.byteSize());
+
+		if (rateLimiter != null) {
+			writer.counter("dns_rrl_dropped_total", "UDP responses dropped by rate limiting", rateLimiter.dropped());
+			writer.counter("dns_rrl_slipped_total", "UDP responses truncated by rate limiting", rateLimiter.slipped());
+		}
+
+		if (admissionController != null) {
+			writer.counter("dns_admission_shed_total", "Queries answered without resolution because the server was saturated", admissionController.shed());
+			writer.counter("dns_admission_admitted_total", "Queries admitted for resolution", admissionController.admitted());
+			writer.gauge("dns_admission_limit", "Current limit on concurrently resolved queries", admissionController.limit());
+			writer.gauge("dns_admission_in_flight", "Queries currently being resolved", admissionController.inFlight());
+		}
+
+		writer.gauge("dns_tcp_connections", "Open TCP connections", selectorEngine != null
+				? selectorEngine.activeConnections()
+				: configuration.tcpMaxConnections() - connectionPermits.availablePermits());
+		writer.counter("dns_tcp_rejected_connections_total", "TCP connections closed on accept for exceeding a limit", selectorEngine != null
+				? selectorEngine.rejectedConnections()
+				: rejectedConnections.sum());
+	}
+
+	private void reportShardRates() {
+		try {
+			while (!Thread.interrupted()) {
+				Thread.sleep(configuration.shardReportInterval());
+				for (var rate : sampleShardRates())
+					logger.info("UDP shard " + rate);
+			}
+		} catch (InterruptedException e) {
+			// server is shutting down
+		}
+	}
+
+	private void reportMetrics() {
+		try {
+			while (!Thread.interrupted()) {
+				Thread.sleep(configuration.metricsReportInterval());
+				for (var protocol : ServerMetrics.Protocol.values())
+					for (var stage : ServerMetrics.Stage.values()) {
+						var latency = metrics.snapshot(protocol, stage);
+						if (latency.count() > 0)
+							logger.info(protocol + " " + stage + " latency " + latency);
+					}
+				if (admissionController != null)
+					logger.info("Shed " + admissionController.shed() + " of " + (admissionController.shed() + admissionController.admitted())
+							+ " queries; concurrency limit " + admissionController.limit());
+			}
+		} catch (InterruptedException e) {
+			// server is shutting down
 		}
 	}
 
 	@Override
 	public void close() {
+		if (selectorEngine != null)
+			selectorEngine.close();
 		executor.shutdownNow();
+		nativeExecutor.shutdownNow();
+
+		try {
+			// the buffers must outlive every thread still writing into them
+			executor.awaitTermination(5, TimeUnit.SECONDS);
+			nativeExecutor.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			bufferPool.close();
+		}
 	}
 
 	private DNSMessage responseFor(DNSMessage request) {
-		Instant start = Instant.now();
-
 		ArrayList<ResourceRecord> answers = new ArrayList<>();
 		ArrayList<ResourceRecord> authorities = new ArrayList<>();
 		ArrayList<ResourceRecord> additional = new ArrayList<>();
@@ -88,59 +251,398 @@ public class DNSServer implements AutoCloseable {
 				(short) additional.size()
 		);
 
-		logger.info("Search took " + Duration.between(start, Instant.now()));
-
 		return new DNSMessage(header, request.queries(), answers, authorities, additional);
 	}
 	
-	private void runDatagramServer(InetSocketAddress address) {
-		try (var datagramChannel = DatagramChannel.open().bind(address)) {
-			logger.info("UDP Server started");
-			ByteBuffer buffer = ByteBuffer.allocateDirect(65535);
+	private static boolean isReusePortSupported() {
+		try (var channel = DatagramChannel.open()) {
+			return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		} catch (IOException e) {
+			return false;
+		}
+	}
 
+	private void startDatagramServers(InetSocketAddress address) {
+		int shards = configuration.udpShards();
+		if (shards > 1 && !isReusePortSupported()) {
+			logger.warn("SO_REUSEPORT is not supported; running a single UDP shard on " + address);
+			shards = 1;
+		}
+
+		boolean useNative = configuration.udpTransport() == ServerConfiguration.Transport.NATIVE;
+		if (useNative && !NativeDatagramSocket.isSupported()) {
+			logger.warn("Batched datagram I/O is not supported; using NIO for UDP on " + address);
+			useNative = false;
+		}
+
+		boolean reusePort = shards > 1;
+		for (int i = 0; i < shards; i++) {
+			var statistics = new ShardStatistics(address, i);
+			shardStatistics.add(statistics);
+			if (useNative)
+				nativeExecutor.submit(() -> runNativeDatagramServer(statistics, reusePort));
+			else
+				executor.submit(() -> runDatagramServer(statistics, reusePort));
+		}
+	}
+
+	/**
+	 * Answers datagrams in batches, one {@code recvmmsg} and one {@code sendmmsg} per batch.
+	 * Requests are answered inline; parallelism comes from running several shards.
+	 */
+	private void runNativeDatagramServer(ShardStatistics statistics, boolean reusePort) {
+		NativeDatagramSocket socket;
+		try {
+			socket = NativeDatagramSocket.bind(statistics.address(), reusePort, configuration.udpBatchSize());
+		} catch (Exception e) {
+			logger.error("Failed to open native UDP socket; falling back to NIO", e);
+			executor.submit(() -> runDatagramServer(statistics, reusePort));
+			return;
+		}
+
+		try (socket) {
+			logger.info("Native UDP Server started (shard " + statistics.shard() + ")");
+
+			long[] startTimes = new long[configuration.udpBatchSize()];
+			int[] types = new int[configuration.udpBatchSize()];
+			var writer = new DNSWriter();
 			while (!Thread.interrupted()) {
-				try {
-					var clientAddress = datagramChannel.receive(buffer);
-					Instant start = Instant.now();
-					buffer.flip();
-					var segment = MemorySegment.ofBuffer(buffer);
-
-					var request = DNSMessage.parseMessage(segment);
-//					logger.info("Parsing took " + Duration.between(start, Instant.now()));
-//
-//					logger.info("Received UDP request from " + clientAddress);
-//					logger.info("Header: " + request.header());
-//					logger.info("Queries: " + request.queries());
-
-					var response = responseFor(request);
-
-					Instant start2 = Instant.now();
-
-					try (Arena arena = Arena.ofConfined()) {
-						var responseSegment = response.toTruncatedMemorySegment(arena); // via UDP
-//						logger.info("Serializing took " + Duration.between(start2, Instant.now()));
-//
-//						logger.info("Truncating: " + response.needsTruncation());
-//						logger.info("Response: " + response);
-//						logger.info("Answers: " + response.answers());
-//						logger.info("Authorities: " + response.authorities());
-//						logger.info("Additional: " + response.additional());
-//						logger.info("Sending response to " + clientAddress);
-
-						datagramChannel.send(responseSegment.asByteBuffer(), clientAddress);
+				int received = socket.receive();
+
+				int queued = 0;
+				for (int i = 0; i < received; i++) {
+					statistics.recordQuery();
+					try {
+						long start = System.nanoTime();
+						var request = socket.request(i);
+						int type = ServerMetrics.questionType(request);
+
+						long subnet = rateLimiter == null ? NO_SUBNET : socket.clientSubnet(i);
+						var response = serializedResponseFor(request, socket.responseBuffer(), writer, ServerMetrics.Protocol.UDP, type, subnet);
+						if (response == null) continue; // rate limited
+						socket.queueResponse(i, response.byteSize());
+
+						startTimes[queued] = start;
+						types[queued] = type;
+						queued++;
+					} catch (Exception e) {
+						logger.error("Error while processing request", e);
 					}
+				}
+
+				long sendStart = System.nanoTime();
+				socket.flush();
+				long sent = System.nanoTime();
+
+				for (int i = 0; i < queued; i++) {
+					metrics.record(ServerMetrics.Protocol.UDP, ServerMetrics.Stage.SEND, types[i], (sent - sendStart) / queued);
+					metrics.record(ServerMetrics.Protocol.UDP, ServerMetrics.Stage.TOTAL, types[i], sent - startTimes[i]);
+				}
+			}
+		} catch (Exception e) {
+			logger.error("Error while running native UDP server", e);
+		}
+		logger.info("Native UDP Server stopped (shard " + statistics.shard() + ")");
+	}
+
+	/** A received datagram waiting for a worker. The worker must release the buffer. */
+	private record Datagram(SocketAddress clientAddress, BufferPool.PooledBuffer buffer, int length) {}
+
+	private void runDatagramServer(ShardStatistics statistics, boolean reusePort) {
+		try (var datagramChannel = DatagramChannel.open()) {
+			if (reusePort)
+				datagramChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			datagramChannel.bind(statistics.address());
 
-					logger.info("UDP Response took " + Duration.between(start, Instant.now()));
+			var queue = new ArrayBlockingQueue<Datagram>(configuration.udpQueueDepth());
+			for (int i = 0; i < configuration.udpWorkers(); i++)
+				executor.submit(() -> runDatagramWorker(datagramChannel, queue));
+
+			logger.info("UDP Server started (shard " + statistics.shard() + ")");
+
+			while (!Thread.interrupted()) {
+				var buffer = bufferPool.acquire();
+				try {
+					var byteBuffer = buffer.segment().asByteBuffer();
+					var clientAddress = datagramChannel.receive(byteBuffer);
+					statistics.recordQuery();
+
+					enqueue(queue, new Datagram(clientAddress, buffer, byteBuffer.position()), statistics);
+				} catch (ClosedByInterruptException e) {
+					buffer.close();
+					break;
 				} catch (Exception e) {
-					logger.error("Error while processing request", e);
-				} finally {
-					buffer.clear();
+					buffer.close();
+					logger.error("Error while receiving request", e);
 				}
 			}
 		} catch (Exception e) {
 			logger.error("Error while running UDP server", e);
 		}
-		logger.info("UDP Server stopped");
+		logger.info("UDP Server stopped (shard " + statistics.shard() + ")");
+	}
+
+	/**
+	 * Hands a datagram to the workers without blocking the receive loop.
+	 */
+	private void enqueue(ArrayBlockingQueue<Datagram> queue, Datagram datagram, ShardStatistics statistics) {
+		if (queue.offer(datagram)) return;
+
+		switch (configuration.udpOverflowPolicy()) {
+			case DROP_NEWEST -> {
+				datagram.buffer().close();
+				statistics.recordDrop();
+			}
+			case DROP_OLDEST -> {
+				// make room for the newest datagram; the oldest is the most likely to have been retried already
+				while (!queue.offer(datagram)) {
+					var dropped = queue.poll();
+					if (dropped != null) {
+						dropped.buffer().close();
+						statistics.recordDrop();
+					}
+				}
+			}
+		}
+	}
+
+	private void runDatagramWorker(DatagramChannel datagramChannel, ArrayBlockingQueue<Datagram> queue) {
+		while (!Thread.interrupted()) {
+			Datagram datagram;
+			try {
+				datagram = queue.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+
+			try (var buffer = datagram.buffer()) {
+				respondToDatagram(datagramChannel, datagram.clientAddress(), buffer.segment().asSlice(0, datagram.length()));
+			} catch (ClosedChannelException e) {
+				break;
+			} catch (Exception e) {
+				logger.error("Error while processing request", e);
+			}
+		}
+	}
+
+	/**
+	 * Parses a request, resolves it and serializes the response.
+	 * <p>
+	 * The request is first read through a {@link MessageView}, which is all a cache hit needs;
+	 * it is only parsed in full on a miss.
+	 * <p>
+	 * If the request carries an OPT record, so does the response,
+	 * and UDP responses may use the advertised payload size up to {@link ServerConfiguration#ednsMaxPayloadSize()}.
+	 * <p>
+	 * Responses to UDP clients are {@linkplain ResponseRateLimiter rate limited} when a subnet is given.
+	 * The limit is checked once the response's class is known, but before it is serialized or copied from the cache.
+	 *
+	 * @param buffer where to write the response; one that doesn't fit is written to the heap instead
+	 * @param writer the writer to write the response with, which must not be in use elsewhere
+	 * @param type the request's {@linkplain ServerMetrics#questionType question type}, for metrics
+	 * @param clientSubnet the {@linkplain ResponseRateLimiter client subnet} to rate limit, or {@link #NO_SUBNET}
+	 * @return the response, or {@code null} if it should be dropped
+	 */
+	private MemorySegment serializedResponseFor(MemorySegment requestSegment, MemorySegment buffer, DNSWriter writer, ServerMetrics.Protocol protocol, int type, long clientSubnet) {
+		long start = System.nanoTime();
+		var view = MessageView.of(requestSegment);
+		long viewed = System.nanoTime();
+
+		int payloadSize = payloadSizeFor(protocol, view);
+		if (view.optCount() > 1 || view.hasOpt() && view.optVersion() != 0) {
+			metrics.record(protocol, ServerMetrics.Stage.PARSE, type, viewed - start);
+			return ednsErrorResponse(view, protocol, buffer, writer, payloadSize);
+		}
+
+		var responseOpt = !view.hasOpt() ? null : new OPTRecord(
+				configuration.ednsMaxPayloadSize(),
+				(byte) 0,
+				(byte) 0,
+				view.optDnssecOk(),
+				List.of()
+		);
+
+		// answering from the cache needs nothing more than the view
+		var cacheKey = responseCache.isEnabled()
+				? ResponseCache.keyFor(view, payloadSize, view.hasOpt(), view.hasOpt() && view.optDnssecOk())
+				: null;
+		if (cacheKey != null) {
+			var cached = responseCache.get(cacheKey);
+			if (cached != null) {
+				metrics.record(protocol, ServerMetrics.Stage.PARSE, type, viewed - start);
+				metrics.record(protocol, ServerMetrics.Stage.LOOKUP, type, System.nanoTime() - viewed);
+
+				var responseClass = ResponseCache.hasAnswers(cached) // only successful responses are cached
+						? ResponseRateLimiter.ResponseClass.ANSWER
+						: ResponseRateLimiter.ResponseClass.EMPTY;
+				var verdict = rateLimit(clientSubnet, responseClass);
+				if (verdict != ResponseRateLimiter.Verdict.SEND)
+					return limitedResponse(view, responseOpt, verdict, buffer, writer, payloadSize);
+
+				metrics.recordResponse(protocol, 0);
+				return ResponseCache.copyInto(cached, view, buffer);
+			}
+		}
+
+		var request = view.toMessage();
+		long parsed = System.nanoTime();
+		metrics.record(protocol, ServerMetrics.Stage.PARSE, type, parsed - start);
+
+		long generation = responseCache.generation();
+
+		if (admissionController != null && !admissionController.tryAcquire())
+			return shedResponse(view, request, responseOpt, protocol, buffer, writer, payloadSize);
+
+		DNSMessage response;
+		try {
+			response = withOptRecord(responseFor(request), responseOpt);
+		} finally {
+			if (admissionController != null)
+				admissionController.release(System.nanoTime() - parsed);
+		}
+		if (configuration.minimalResponses())
+			response = response.asMinimalResponse();
+
+		long resolved = System.nanoTime();
+		metrics.record(protocol, ServerMetrics.Stage.LOOKUP, type, resolved - parsed);
+
+		var verdict = rateLimit(clientSubnet, responseClassOf(response));
+		if (verdict != ResponseRateLimiter.Verdict.SEND)
+			return limitedResponse(view, responseOpt, verdict, buffer, writer, payloadSize);
+
+		var responseSegment = serialize(response, view, buffer, writer, payloadSize);
+		metrics.record(protocol, ServerMetrics.Stage.SERIALIZE, type, System.nanoTime() - resolved);
+		metrics.recordResponse(protocol, response.header().responseCode());
+
+		if (cacheKey != null && response.header().responseCode() == 0) // don't cache failures
+			responseCache.put(cacheKey, responseSegment, generation);
+
+		if (logger.isDebugEnabled())
+			logger.debug(protocol + " " + request.queries() + " answered with " + response.answers().size() + " records");
+
+		return responseSegment;
+	}
+
+	/**
+	 * The most bytes a response may take before it must be truncated.
+	 * Over UDP, that is 512 bytes unless the client advertised more with EDNS.
+	 */
+	private int payloadSizeFor(ServerMetrics.Protocol protocol, MessageView request) {
+		return switch (protocol) {
+			case TCP -> MAX_TCP_MESSAGE_SIZE;
+			case UDP -> !request.hasOpt()
+					? DNSMessage.UDP_PAYLOAD_SIZE
+					: Math.clamp(request.optPayloadSize(), DNSMessage.UDP_PAYLOAD_SIZE, configuration.ednsMaxPayloadSize());
+		};
+	}
+
+	/**
+	 * Answers a request with several OPT records with a format error,
+	 * and one with an EDNS version other than 0 with BADVERS (RFC 6891, section 6.1.3).
+	 */
+	private MemorySegment ednsErrorResponse(MessageView view, ServerMetrics.Protocol protocol, MemorySegment buffer, DNSWriter writer, int payloadSize) {
+		var request = view.toMessage();
+		if (view.optCount() > 1) {
+			metrics.recordResponse(protocol, 1);
+			return serialize(request.asErrorResponse((byte) 1), view, buffer, writer, payloadSize); // format error
+		}
+
+		var badVersionOpt = new OPTRecord(configuration.ednsMaxPayloadSize(), (byte) (OPTRecord.BAD_VERSION >>> 4), (byte) 0, view.optDnssecOk(), List.of());
+		metrics.recordResponse(protocol, OPTRecord.BAD_VERSION);
+		return serialize(request.asErrorResponse((byte) (OPTRecord.BAD_VERSION & 0xF)).withOptRecord(badVersionOpt), view, buffer, writer, payloadSize);
+	}
+
+	private static DNSMessage withOptRecord(DNSMessage response, OPTRecord opt) {
+		return opt == null ? response : response.withOptRecord(opt);
+	}
+
+	/**
+	 * Writes a response into the start of a buffer, truncated to {@code maxSize} bytes,
+	 * with the question copied from the request as the client sent it.
+	 * If the buffer is what cut it short, it is written again into a heap buffer of the full size.
+	 */
+	private static MemorySegment serialize(DNSMessage response, MessageView request, MemorySegment buffer, DNSWriter writer, int maxSize) {
+		int size = writer.write(response, request, buffer, maxSize);
+		if (writer.isTruncated() && buffer.byteSize() < maxSize) {
+			buffer = MemorySegment.ofArray(new byte[maxSize]);
+			size = writer.write(response, request, buffer, maxSize);
+		}
+		return buffer.asSlice(0, size);
+	}
+
+	/**
+	 * Answers a query that was not admitted, without resolving it:
+	 * a truncated response over UDP, so the client retries over TCP, or a server failure over TCP.
+	 */
+	private MemorySegment shedResponse(MessageView view, DNSMessage request, OPTRecord responseOpt, ServerMetrics.Protocol protocol, MemorySegment buffer, DNSWriter writer, int payloadSize) {
+		var response = switch (protocol) {
+			case UDP -> request.asTruncatedResponse();
+			case TCP -> request.asErrorResponse();
+		};
+		metrics.recordResponse(protocol, response.header().responseCode());
+		return serialize(withOptRecord(response, responseOpt), view, buffer, writer, payloadSize);
+	}
+
+	private ResponseRateLimiter.Verdict rateLimit(long clientSubnet, ResponseRateLimiter.ResponseClass responseClass) {
+		if (rateLimiter == null || clientSubnet == NO_SUBNET) return ResponseRateLimiter.Verdict.SEND;
+		return rateLimiter.check(clientSubnet, responseClass);
+	}
+
+	private static ResponseRateLimiter.ResponseClass responseClassOf(DNSMessage response) {
+		if (response.header().responseCode() != 0) return ResponseRateLimiter.ResponseClass.ERROR;
+		if (response.answers().isEmpty()) return ResponseRateLimiter.ResponseClass.EMPTY;
+		return ResponseRateLimiter.ResponseClass.ANSWER;
+	}
+
+	private static MemorySegment limitedResponse(MessageView request, OPTRecord responseOpt, ResponseRateLimiter.Verdict verdict, MemorySegment buffer, DNSWriter writer, int payloadSize) {
+		return switch (verdict) {
+			case SEND -> throw new IllegalArgumentException("Response is not limited");
+			case SLIP -> serialize(withOptRecord(request.toMessage().asTruncatedResponse(), responseOpt), request, buffer, writer, payloadSize);
+			case DROP -> null;
+		};
+	}
+
+	private void respondToDatagram(DatagramChannel datagramChannel, SocketAddress clientAddress, MemorySegment requestSegment) throws IOException {
+		long start = System.nanoTime();
+		int type = ServerMetrics.questionType(requestSegment);
+		long subnet = rateLimiter != null && clientAddress instanceof InetSocketAddress address
+				? ResponseRateLimiter.subnetOf(address.getAddress())
+				: NO_SUBNET;
+
+		try (var responseBuffer = bufferPool.acquire()) {
+			var responseSegment = serializedResponseFor(requestSegment, responseBuffer.segment(), responseBuffer.writer(), ServerMetrics.Protocol.UDP, type, subnet);
+			if (responseSegment == null) return; // rate limited
+
+			long sendStart = System.nanoTime();
+			datagramChannel.send(responseSegment.asByteBuffer(), clientAddress);
+			long sent = System.nanoTime();
+
+			metrics.record(ServerMetrics.Protocol.UDP, ServerMetrics.Stage.SEND, type, sent - sendStart);
+			metrics.record(ServerMetrics.Protocol.UDP, ServerMetrics.Stage.TOTAL, type, sent - start);
+		}
+	}
+
+	private SelectorTcpEngine openSelectorEngine() {
+		try {
+			return new SelectorTcpEngine(configuration, executor, bufferPool, metrics,
+					(request, type, buffer, writer) -> serializedResponseFor(request, buffer, writer, ServerMetrics.Protocol.TCP, type, NO_SUBNET));
+		} catch (IOException e) {
+			logger.error("Failed to open TCP selector engine; serving a thread per connection", e);
+			return null;
+		}
+	}
+
+	private void startSocketServer(InetSocketAddress address) {
+		if (selectorEngine != null) {
+			try {
+				selectorEngine.bind(address);
+				return;
+			} catch (IOException e) {
+				logger.error("Failed to bind TCP selector engine to " + address, e);
+			}
+		}
+
+		executor.submit(() -> runSocketServer(address));
 	}
 
 	private void runSocketServer(InetSocketAddress address) {
@@ -151,7 +653,18 @@ public class DNSServer implements AutoCloseable {
 				try {
 					var clientChannel = serverSocketChannel.accept();
 //					logger.info("TCP connection accepted from " + clientChannel.getRemoteAddress());
-					executor.submit(() -> handleSocketConnection(clientChannel));
+					if (!connectionPermits.tryAcquire()) {
+						rejectedConnections.increment();
+						clientChannel.close();
+						continue;
+					}
+					executor.submit(() -> {
+						try {
+							handleSocketConnection(clientChannel);
+						} finally {
+							connectionPermits.release();
+						}
+					});
 				} catch (Exception e) {
 					logger.error("Error while accepting TCP connection", e);
 				}
@@ -162,67 +675,117 @@ public class DNSServer implements AutoCloseable {
 		logger.info("TCP Server Socket Channel stopped");
 	}
 
+	/**
+	 * Reads queries from a connection as they arrive and answers them concurrently (RFC 7766 section 6.2.1.1).
+	 * Responses are written as soon as they are ready, so they may arrive out of order.
+	 * At most {@link ServerConfiguration#tcpMaxInFlight()} queries per connection are outstanding;
+	 * beyond that, the reader stops reading until a response has been written.
+	 * A query that can't be answered, such as a malformed one, closes the connection once the others read so far are answered.
+	 */
 	private void handleSocketConnection(SocketChannel clientChannel) {
-		try (clientChannel) {
-			while (!Thread.interrupted()) {
-				ByteBuffer lengthBuffer = ByteBuffer.allocateDirect(2);
-
-				while (lengthBuffer.hasRemaining())
-					clientChannel.read(lengthBuffer); // read 2 bytes for message length
-				lengthBuffer.flip();
-				int length = Short.toUnsignedInt(lengthBuffer.getShort());
-
-//				logger.info("TCP Message length: " + length + " bytes");
-
-				ByteBuffer buffer = ByteBuffer.allocateDirect(length);
-
-				while (buffer.hasRemaining())
-					clientChannel.read(buffer);
-				buffer.flip();
-
-				Instant start = Instant.now();
-
-				var segment = MemorySegment.ofBuffer(buffer);
-
-				var request = DNSMessage.parseMessage(segment);
-//				logger.info("Parsing took " + Duration.between(start, Instant.now()));
-//
-//				logger.info("Received TCP request from " + clientChannel.getRemoteAddress());
-//				logger.info("Header: " + request.header());
-//				logger.info("Queries: " + request.queries());
-
-				var response = responseFor(request);
-
-				Instant start2 = Instant.now();
+		int maxInFlight = configuration.tcpMaxInFlight();
+		var inFlight = new Semaphore(maxInFlight);
+		var writeLock = new ReentrantLock();
 
-				try (Arena arena = Arena.ofConfined()) {
-					var responseSegment = response.toTruncatedMemorySegment(arena); // via TCP
+		try (clientChannel) {
+			ByteBuffer lengthBuffer = ByteBuffer.allocateDirect(2);
 
+			try {
+				while (!Thread.interrupted()) {
 					lengthBuffer.clear();
-					lengthBuffer.putShort((short) responseSegment.byteSize());
+					if (!readFully(clientChannel, lengthBuffer)) break; // read 2 bytes for message length
 					lengthBuffer.flip();
+					int length = Short.toUnsignedInt(lengthBuffer.getShort());
+
+//					logger.info("TCP Message length: " + length + " bytes");
+
+					var requestBuffer = bufferPool.acquire(length);
+					MemorySegment segment;
+					try {
+						segment = requestBuffer.segment().asSlice(0, length);
+						if (!readFully(clientChannel, segment.asByteBuffer())) {
+							requestBuffer.close();
+							break;
+						}
+
+						inFlight.acquire();
+					} catch (Exception e) {
+						requestBuffer.close();
+						throw e;
+					}
 
-//					logger.info("Serializing took " + Duration.between(start2, Instant.now()));
-//
-//					logger.info("Truncating: " + response.needsTruncation());
-//					logger.info("Response: " + response);
-//					logger.info("Answers: " + response.answers());
-//					logger.info("Authorities: " + response.authorities());
-//					logger.info("Additional: " + response.additional());
-//					logger.info("Sending response to " + clientChannel.getRemoteAddress());
-
-					clientChannel.write(new ByteBuffer[] {lengthBuffer, responseSegment.asByteBuffer()});
+					executor.submit(() -> {
+						try (requestBuffer) {
+							respondToStream(clientChannel, writeLock, segment);
+						} catch (Exception e) {
+							// a malformed query, or a failed write; either way the client gets no answer, so don't keep it waiting
+							logger.debug("Closing TCP connection after error", e);
+							stopReading(clientChannel);
+						} finally {
+							inFlight.release();
+						}
+					});
 				}
-
-				logger.info("TCP Response took " + Duration.between(start, Instant.now()));
-//
-//				logger.info("Closing TCP channel with " + clientChannel.getRemoteAddress());
-//				break;
+			} finally {
+				inFlight.acquireUninterruptibly(maxInFlight); // let outstanding queries finish before closing, however reading ended
 			}
+		} catch (InterruptedException e) {
+			// server is shutting down
 		} catch (Exception e) {
 			logger.error("Error while processing request", e);
 		} finally {
 			logger.info("TCP connection closed");
 		}
 	}
+
+	private void respondToStream(SocketChannel clientChannel, ReentrantLock writeLock, MemorySegment requestSegment) throws IOException {
+		long start = System.nanoTime();
+		int type = ServerMetrics.questionType(requestSegment);
+
+		try (var responseBuffer = bufferPool.acquire()) {
+			var responseSegment = serializedResponseFor(requestSegment, responseBuffer.segment(), responseBuffer.writer(), ServerMetrics.Protocol.TCP, type, NO_SUBNET);
+
+			var lengthBuffer = ByteBuffer.allocate(2).putShort((short) responseSegment.byteSize()).flip();
+			var messageBuffer = responseSegment.asByteBuffer();
+
+			// responses to pipelined queries must not interleave
+			long sendStart = System.nanoTime();
+			writeLock.lock();
+			try {
+				while (lengthBuffer.hasRemaining() || messageBuffer.hasRemaining())
+					clientChannel.write(new ByteBuffer[] {lengthBuffer, messageBuffer});
+			} finally {
+				writeLock.unlock();
+			}
+			long sent = System.nanoTime();
+
+			metrics.record(ServerMetrics.Protocol.TCP, ServerMetrics.Stage.SEND, type, sent - sendStart);
+			metrics.record(ServerMetrics.Protocol.TCP, ServerMetrics.Stage.TOTAL, type, sent - start);
+		}
+	}
+
+	/**
+	 * Ends the reader's loop, so that the connection is closed once the queries already read are answered.
+	 */
+	private static void stopReading(SocketChannel channel) {
+		try {
+			channel.shutdownInput();
+		} catch (IOException e) {
+			try {
+				channel.close();
+			} catch (IOException alsoFailed) {
+				// nothing more can be done with it
+			}
+		}
+	}
+
+	/**
+	 * Reads until the buffer is full.
+	 * @return false if the connection was closed first
+	 */
+	private static boolean readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			if (channel.read(buffer) < 0) return false;
+		return true;
+	}
 }
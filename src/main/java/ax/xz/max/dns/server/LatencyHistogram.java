@@ -0,0 +1,116 @@
+package ax.xz.max.dns.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations in nanoseconds.
+ * <p>
+ * Buckets are log-linear: every power of two is split into {@value #SUB_BUCKETS} equal sub-buckets,
+ * so a reported percentile is within 12.5% of the true value.
+ * Recording is an atomic increment of a bucket plus an addition to the running total, which Prometheus summaries report as their sum.
+ */
+public final class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 40; // about 18 minutes; anything longer is clamped
+	private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+	private static final int BUCKETS = bucketOf(MAX_VALUE) + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder sumNanos = new LongAdder();
+
+	private static int bucketOf(long nanos) {
+		if (nanos < SUB_BUCKETS) return (int) Math.max(nanos, 0);
+
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+	}
+
+	/** The largest value that falls into the given bucket */
+	private static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS) return bucket;
+
+		int exponent = (bucket >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+		long lowerBound = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << (exponent - SUB_BUCKET_BITS);
+		return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	public void record(long nanos) {
+		counts.incrementAndGet(bucketOf(Math.min(nanos, MAX_VALUE)));
+		sumNanos.add(Math.max(nanos, 0));
+	}
+
+	/**
+	 * Copies the current counts. Samples recorded concurrently may or may not be included.
+	 */
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			copy[i] = counts.get(i);
+		return new Snapshot(copy, sumNanos.sum());
+	}
+
+	/** A point-in-time copy of a histogram's counts */
+	public static final class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sumNanos;
+
+		private Snapshot(long[] counts, long sumNanos) {
+			this.counts = counts;
+			this.sumNanos = sumNanos;
+
+			long count = 0;
+			for (long c : counts) count += c;
+			this.count = count;
+		}
+
+		public static Snapshot empty() {
+			return new Snapshot(new long[BUCKETS], 0);
+		}
+
+		public long count() {
+			return count;
+		}
+
+		/**
+		 * @return the total of every sample, in nanoseconds
+		 */
+		public long sumNanos() {
+			return sumNanos;
+		}
+
+		/**
+		 * @param percentile between 0 and 100
+		 * @return an upper bound on the duration, in nanoseconds, below which that percentage of samples fall
+		 */
+		public long percentile(double percentile) {
+			if (count == 0) return 0;
+
+			long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) return upperBoundOf(i);
+			}
+			return MAX_VALUE;
+		}
+
+		public Snapshot merge(Snapshot other) {
+			long[] merged = counts.clone();
+			for (int i = 0; i < merged.length; i++)
+				merged[i] += other.counts[i];
+			return new Snapshot(merged, sumNanos + other.sumNanos);
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count
+					+ " p50=" + percentile(50) / 1000 + "us"
+					+ " p99=" + percentile(99) / 1000 + "us"
+					+ " p999=" + percentile(99.9) / 1000 + "us";
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package ax.xz.max.dns.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves counters and gauges over HTTP at {@code /metrics}, in the Prometheus text exposition format.
+ * <p>
+ * Values are read from registered {@link Collector}s on every scrape.
+ * Collectors should only read counters and volatile fields, so that scraping never contends with queries.
+ */
+public final class MetricsEndpoint implements AutoCloseable {
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	@FunctionalInterface
+	public interface Collector {
+		void collect(Writer writer);
+	}
+
+	private final Logger logger = LoggerFactory.getLogger(MetricsEndpoint.class);
+	private final List<Collector> collectors = new CopyOnWriteArrayList<>();
+	private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+	private final HttpServer server;
+
+	private MetricsEndpoint(InetSocketAddress address) throws IOException {
+		this.server = HttpServer.create(address, 0);
+		server.createContext("/metrics", this::handle);
+		server.setExecutor(executor);
+	}
+
+	/**
+	 * Starts serving on the given address. It should normally be a loopback address.
+	 */
+	public static MetricsEndpoint start(InetSocketAddress address) throws IOException {
+		var endpoint = new MetricsEndpoint(address);
+		endpoint.server.start();
+		endpoint.logger.info("Metrics endpoint started on " + endpoint.server.getAddress());
+		return endpoint;
+	}
+
+	public MetricsEndpoint register(Collector collector) {
+		collectors.add(collector);
+		return this;
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try (exchange) {
+			if (!exchange.getRequestMethod().equals("GET")) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+
+			var writer = new Writer();
+			for (var collector : collectors)
+				try {
+					collector.collect(writer);
+				} catch (Exception e) {
+					logger.error("Error while collecting metrics", e);
+				}
+
+			byte[] body = writer.toString().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			exchange.sendResponseHeaders(200, body.length);
+			exchange.getResponseBody().write(body);
+		}
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Formats samples for one scrape.
+	 * Every sample of a metric must be written together, since its description is only written before the first.
+	 * Labels are given as alternating names and values.
+	 */
+	public static final class Writer {
+		private final StringBuilder output = new StringBuilder();
+		private final Set<String> described = new HashSet<>();
+
+		private Writer() {
+		}
+
+		public void counter(String name, String help, long value, String... labels) {
+			describe(name, "counter", help);
+			sample(name, labels, null, Long.toString(value));
+		}
+
+		public void counter(String name, String help, double value, String... labels) {
+			describe(name, "counter", help);
+			sample(name, labels, null, Double.toString(value));
+		}
+
+		public void gauge(String name, String help, double value, String... labels) {
+			describe(name, "gauge", help);
+			sample(name, labels, null, Double.toString(value));
+		}
+
+		/**
+		 * Writes the median, 99th and 99.9th percentiles of a latency histogram, and the total of its samples, in seconds.
+		 */
+		public void summary(String name, String help, LatencyHistogram.Snapshot latency, String... labels) {
+			describe(name, "summary", help);
+			sample(name, labels, "0.5", Double.toString(latency.percentile(50) / 1e9));
+			sample(name, labels, "0.99", Double.toString(latency.percentile(99) / 1e9));
+			sample(name, labels, "0.999", Double.toString(latency.percentile(99.9) / 1e9));
+			sample(name + "_sum", labels, null, Double.toString(latency.sumNanos() / 1e9));
+			sample(name + "_count", labels, null, Long.toString(latency.count()));
+		}
+
+		private void describe(String name, String type, String help) {
+			if (!described.add(name)) return;
+			output.append("# HELP ").append(name).append(' ').append(help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+			output.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		}
+
+		private void sample(String name, String[] labels, String quantile, String value) {
+			if (labels.length % 2 != 0) throw new IllegalArgumentException("Labels must be name-value pairs");
+
+			output.append(name);
+			if (labels.length > 0 || quantile != null) {
+				output.append('{');
+				for (int i = 0; i < labels.length; i += 2) {
+					if (i > 0) output.append(',');
+					label(labels[i], labels[i + 1]);
+				}
+				if (quantile != null) {
+					if (labels.length > 0) output.append(',');
+					label("quantile", quantile);
+				}
+				output.append('}');
+			}
+			output.append(' ').append(value).append('\n');
+		}
+
+		private void label(String name, String value) {
+			output.append(name).append("=\"")
+					.append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+					.append('"');
+		}
+
+		@Override
+		public String toString() {
+			return output.toString();
+		}
+	}
+}
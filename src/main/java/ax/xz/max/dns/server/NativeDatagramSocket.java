@@ -0,0 +1,396 @@
+package ax.xz.max.dns.server;
+
+import java.io.IOException;
+import java.lang.foreign.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.util.Optional;
+import java.util.Set;
+
+import static java.lang.foreign.MemoryLayout.PathElement.groupElement;
+import static java.lang.foreign.ValueLayout.*;
+import static java.nio.ByteOrder.BIG_ENDIAN;
+
+/**
+ * A Linux UDP socket that receives and sends datagrams in batches,
+ * using one {@code recvmmsg} and one {@code sendmmsg} call per batch.
+ * <p>
+ * All native memory (message headers, addresses and payload buffers) is allocated once, when the socket is bound.
+ * This class is not thread-safe; it must be used by the thread that bound it.
+ * <p>
+ * Native calls pin the calling thread, so sockets should be driven by platform threads.
+ */
+final class NativeDatagramSocket implements AutoCloseable {
+	private static final int AF_INET = 2;
+	private static final int AF_INET6 = 10;
+	private static final int SOCK_DGRAM = 2;
+	private static final int SOL_SOCKET = 1;
+	private static final int SO_REUSEPORT = 15; // these two differ on other architectures, such as ppc64 and mips64
+	private static final int SO_RCVTIMEO = 20;
+	private static final Set<String> SUPPORTED_ARCHITECTURES = Set.of("amd64", "aarch64", "riscv64"); // 64-bit, with the generic socket options
+	private static final int MSG_WAITFORONE = 0x10000;
+	private static final int EINTR = 4;
+	private static final int EAGAIN = 11;
+
+	private static final int RECEIVE_TIMEOUT_MILLIS = 500; // bounds how long an interrupt goes unnoticed
+	private static final int RECEIVE_BUFFER_SIZE = 4096;
+	private static final int SEND_BUFFER_SIZE = 65535;
+	private static final int SOCKADDR_STORAGE_SIZE = 128;
+
+	private static final ValueLayout.OfShort NETWORK_SHORT = JAVA_SHORT.withByteAlignment(1).withOrder(BIG_ENDIAN);
+	private static final ValueLayout.OfInt NETWORK_INT = JAVA_INT.withByteAlignment(1).withOrder(BIG_ENDIAN);
+	private static final ValueLayout.OfLong NETWORK_LONG = JAVA_LONG.withByteAlignment(1).withOrder(BIG_ENDIAN);
+
+	private static final StructLayout IOVEC = MemoryLayout.structLayout(
+			ADDRESS.withName("iov_base"),
+			JAVA_LONG.withName("iov_len")
+	);
+
+	private static final StructLayout MSGHDR = MemoryLayout.structLayout(
+			ADDRESS.withName("msg_name"),
+			JAVA_INT.withName("msg_namelen"),
+			MemoryLayout.paddingLayout(4),
+			ADDRESS.withName("msg_iov"),
+			JAVA_LONG.withName("msg_iovlen"),
+			ADDRESS.withName("msg_control"),
+			JAVA_LONG.withName("msg_controllen"),
+			JAVA_INT.withName("msg_flags"),
+			MemoryLayout.paddingLayout(4)
+	);
+
+	private static final StructLayout MMSGHDR = MemoryLayout.structLayout(
+			MSGHDR.withName("msg_hdr"),
+			JAVA_INT.withName("msg_len"),
+			MemoryLayout.paddingLayout(4)
+	);
+
+	private static final long IOV_BASE = IOVEC.byteOffset(groupElement("iov_base"));
+	private static final long IOV_LEN = IOVEC.byteOffset(groupElement("iov_len"));
+	private static final long MSG_NAME = MMSGHDR.byteOffset(groupElement("msg_hdr"), groupElement("msg_name"));
+	private static final long MSG_NAMELEN = MMSGHDR.byteOffset(groupElement("msg_hdr"), groupElement("msg_namelen"));
+	private static final long MSG_IOV = MMSGHDR.byteOffset(groupElement("msg_hdr"), groupElement("msg_iov"));
+	private static final long MSG_IOVLEN = MMSGHDR.byteOffset(groupElement("msg_hdr"), groupElement("msg_iovlen"));
+	private static final long MSG_LEN = MMSGHDR.byteOffset(groupElement("msg_len"));
+
+	/** Downcall handles, or {@code null} if this platform cannot support the transport. */
+	private static final class Native {
+		private static final StructLayout CAPTURED_STATE;
+		private static final VarHandle ERRNO;
+		private static final MethodHandle SOCKET;
+		private static final MethodHandle SETSOCKOPT;
+		private static final MethodHandle BIND;
+		private static final MethodHandle RECVMMSG;
+		private static final MethodHandle SENDMMSG;
+		private static final MethodHandle CLOSE;
+
+		static {
+			StructLayout capturedState = null;
+			VarHandle errno = null;
+			MethodHandle socket = null, setsockopt = null, bind = null, recvmmsg = null, sendmmsg = null, close = null;
+
+			if (System.getProperty("os.name", "").startsWith("Linux") && SUPPORTED_ARCHITECTURES.contains(System.getProperty("os.arch", ""))) {
+				try {
+					Linker linker = Linker.nativeLinker();
+					SymbolLookup libc = linker.defaultLookup();
+					Linker.Option captureErrno = Linker.Option.captureCallState("errno");
+
+					capturedState = Linker.Option.captureStateLayout();
+					errno = capturedState.varHandle(groupElement("errno"));
+
+					socket = downcall(linker, libc, "socket", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT), captureErrno);
+					setsockopt = downcall(linker, libc, "setsockopt", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT), captureErrno);
+					bind = downcall(linker, libc, "bind", FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT), captureErrno);
+					recvmmsg = downcall(linker, libc, "recvmmsg", FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT, JAVA_INT, ADDRESS), captureErrno);
+					sendmmsg = downcall(linker, libc, "sendmmsg", FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT, JAVA_INT), captureErrno);
+					close = downcall(linker, libc, "close", FunctionDescriptor.of(JAVA_INT, JAVA_INT), captureErrno);
+				} catch (RuntimeException e) {
+					socket = null; // unsupported linker or missing symbol
+				}
+			}
+
+			CAPTURED_STATE = capturedState;
+			ERRNO = errno;
+			SOCKET = socket;
+			SETSOCKOPT = setsockopt;
+			BIND = bind;
+			RECVMMSG = recvmmsg;
+			SENDMMSG = sendmmsg;
+			CLOSE = close;
+		}
+
+		private static MethodHandle downcall(Linker linker, SymbolLookup lookup, String name, FunctionDescriptor descriptor, Linker.Option... options) {
+			Optional<MemorySegment> symbol = lookup.find(name);
+			return linker.downcallHandle(symbol.orElseThrow(() -> new UnsupportedOperationException("Missing symbol: " + name)), descriptor, options);
+		}
+	}
+
+	/**
+	 * Whether batched datagram I/O is available on this platform, which must be 64-bit Linux on x86, ARM or RISC-V.
+	 */
+	static boolean isSupported() {
+		return Native.SOCKET != null;
+	}
+
+	private final Arena arena;
+	private final int fd;
+	private final int batchSize;
+	private final MemorySegment capturedState;
+
+	private final MemorySegment receiveHeaders;
+	private final MemorySegment receiveVectors;
+	private final MemorySegment receiveNames;
+	private final MemorySegment receiveBuffers;
+	private final MemorySegment sendHeaders;
+	private final MemorySegment sendVectors;
+	private final MemorySegment sendBuffers;
+
+	private int received = 0;
+	private int queued = 0;
+	private volatile boolean isClosed = false;
+
+	private NativeDatagramSocket(Arena arena, int fd, int batchSize) {
+		this.arena = arena;
+		this.fd = fd;
+		this.batchSize = batchSize;
+		this.capturedState = arena.allocate(Native.CAPTURED_STATE);
+
+		this.receiveHeaders = arena.allocate(MMSGHDR.byteSize() * batchSize, MMSGHDR.byteAlignment());
+		this.receiveVectors = arena.allocate(IOVEC.byteSize() * batchSize, IOVEC.byteAlignment());
+		this.receiveNames = arena.allocate((long) SOCKADDR_STORAGE_SIZE * batchSize, 8);
+		this.receiveBuffers = arena.allocate((long) RECEIVE_BUFFER_SIZE * batchSize, 8);
+
+		this.sendHeaders = arena.allocate(MMSGHDR.byteSize() * batchSize, MMSGHDR.byteAlignment());
+		this.sendVectors = arena.allocate(IOVEC.byteSize() * batchSize, IOVEC.byteAlignment());
+		this.sendBuffers = arena.allocate((long) SEND_BUFFER_SIZE * batchSize, 8);
+
+		for (int i = 0; i < batchSize; i++) {
+			var vector = receiveVectors.asSlice(i * IOVEC.byteSize(), IOVEC.byteSize());
+			vector.set(ADDRESS, IOV_BASE, receiveBuffers.asSlice((long) i * RECEIVE_BUFFER_SIZE, RECEIVE_BUFFER_SIZE));
+
+			var header = receiveHeader(i);
+			header.set(ADDRESS, MSG_NAME, receiveNames.asSlice((long) i * SOCKADDR_STORAGE_SIZE, SOCKADDR_STORAGE_SIZE));
+			header.set(ADDRESS, MSG_IOV, vector);
+			header.set(JAVA_LONG, MSG_IOVLEN, 1);
+
+			var sendHeader = sendHeader(i);
+			sendHeader.set(ADDRESS, MSG_IOV, sendVectors.asSlice(i * IOVEC.byteSize(), IOVEC.byteSize()));
+			sendHeader.set(JAVA_LONG, MSG_IOVLEN, 1);
+		}
+	}
+
+	/**
+	 * Opens a UDP socket bound to the given address.
+	 */
+	static NativeDatagramSocket bind(InetSocketAddress address, boolean reusePort, int batchSize) throws IOException {
+		if (!isSupported()) throw new UnsupportedOperationException("Batched datagram I/O is not supported on this platform");
+		if (batchSize < 1) throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+
+		Arena arena = Arena.ofConfined();
+		try {
+			MemorySegment capturedState = arena.allocate(Native.CAPTURED_STATE);
+			MemorySegment socketAddress = socketAddress(arena, address);
+			int family = Short.toUnsignedInt(socketAddress.get(JAVA_SHORT, 0));
+
+			int fd = (int) Native.SOCKET.invokeExact(capturedState, family, SOCK_DGRAM, 0);
+			if (fd < 0) throw errnoException("socket", capturedState);
+
+			try {
+				if (reusePort)
+					setOption(capturedState, fd, SOL_SOCKET, SO_REUSEPORT, arena.allocateFrom(JAVA_INT, 1));
+
+				// struct timeval { long tv_sec; long tv_usec; }
+				MemorySegment timeout = arena.allocate(16, 8);
+				timeout.set(JAVA_LONG, 0, RECEIVE_TIMEOUT_MILLIS / 1000);
+				timeout.set(JAVA_LONG, 8, (RECEIVE_TIMEOUT_MILLIS % 1000) * 1000L);
+				setOption(capturedState, fd, SOL_SOCKET, SO_RCVTIMEO, timeout);
+
+				int result = (int) Native.BIND.invokeExact(capturedState, fd, socketAddress, (int) socketAddress.byteSize());
+				if (result < 0) throw errnoException("bind " + address, capturedState);
+			} catch (Throwable e) {
+				int ignored = (int) Native.CLOSE.invokeExact(capturedState, fd);
+				throw e;
+			}
+
+			return new NativeDatagramSocket(arena, fd, batchSize);
+		} catch (IOException | RuntimeException | Error e) {
+			arena.close();
+			throw e;
+		} catch (Throwable e) {
+			arena.close();
+			throw new IOException("Failed to open native datagram socket", e);
+		}
+	}
+
+	private static void setOption(MemorySegment capturedState, int fd, int level, int option, MemorySegment value) throws Throwable {
+		int result = (int) Native.SETSOCKOPT.invokeExact(capturedState, fd, level, option, value, (int) value.byteSize());
+		if (result < 0) throw errnoException("setsockopt " + option, capturedState);
+	}
+
+	private static MemorySegment socketAddress(Arena arena, InetSocketAddress address) {
+		byte[] ip = address.getAddress().getAddress();
+
+		if (ip.length == 4) {
+			// struct sockaddr_in { sa_family_t; in_port_t; struct in_addr; char[8]; }
+			MemorySegment result = arena.allocate(16, 4);
+			result.set(JAVA_SHORT, 0, (short) AF_INET);
+			result.set(NETWORK_SHORT, 2, (short) address.getPort());
+			result.asSlice(4, 4).copyFrom(MemorySegment.ofArray(ip));
+			return result;
+		} else {
+			// struct sockaddr_in6 { sa_family_t; in_port_t; uint32_t flowinfo; struct in6_addr; uint32_t scope_id; }
+			MemorySegment result = arena.allocate(28, 4);
+			result.set(JAVA_SHORT, 0, (short) AF_INET6);
+			result.set(NETWORK_SHORT, 2, (short) address.getPort());
+			result.asSlice(8, 16).copyFrom(MemorySegment.ofArray(ip));
+			result.set(JAVA_INT, 24, ((Inet6Address) address.getAddress()).getScopeId());
+			return result;
+		}
+	}
+
+	private static IOException errnoException(String operation, MemorySegment capturedState) {
+		return new IOException(operation + " failed with errno " + errno(capturedState));
+	}
+
+	private static int errno(MemorySegment capturedState) {
+		return (int) Native.ERRNO.get(capturedState, 0L);
+	}
+
+	private MemorySegment receiveHeader(int index) {
+		return receiveHeaders.asSlice(index * MMSGHDR.byteSize(), MMSGHDR.byteSize());
+	}
+
+	private MemorySegment sendHeader(int index) {
+		return sendHeaders.asSlice(index * MMSGHDR.byteSize(), MMSGHDR.byteSize());
+	}
+
+	/**
+	 * Blocks until at least one datagram arrives, then receives as many as are immediately available.
+	 * Discards any responses queued but not sent.
+	 *
+	 * @return the number of datagrams received, or 0 if the receive timed out or was interrupted
+	 */
+	int receive() throws IOException {
+		if (isClosed) throw new IOException("Socket is closed");
+		queued = 0;
+		received = 0;
+
+		for (int i = 0; i < batchSize; i++) {
+			receiveHeader(i).set(JAVA_INT, MSG_NAMELEN, SOCKADDR_STORAGE_SIZE);
+			receiveVectors.set(JAVA_LONG, i * IOVEC.byteSize() + IOV_LEN, RECEIVE_BUFFER_SIZE);
+		}
+
+		int result;
+		try {
+			result = (int) Native.RECVMMSG.invokeExact(capturedState, fd, receiveHeaders, batchSize, MSG_WAITFORONE, MemorySegment.NULL);
+		} catch (Throwable e) {
+			throw new IOException("recvmmsg failed", e);
+		}
+
+		if (result < 0) {
+			int errno = errno(capturedState);
+			if (errno == EAGAIN || errno == EINTR) return 0;
+			throw new IOException("recvmmsg failed with errno " + errno);
+		}
+
+		received = result;
+		return result;
+	}
+
+	/**
+	 * The payload of a datagram returned by the last {@link #receive()}.
+	 * Only valid until the next call to {@link #receive()}.
+	 */
+	MemorySegment request(int index) {
+		if (index < 0 || index >= received) throw new IndexOutOfBoundsException(index);
+		int length = receiveHeader(index).get(JAVA_INT, MSG_LEN);
+		return receiveBuffers.asSlice((long) index * RECEIVE_BUFFER_SIZE, Math.min(length, RECEIVE_BUFFER_SIZE));
+	}
+
+	/**
+	 * The {@linkplain ResponseRateLimiter subnet} that sent a datagram returned by the last {@link #receive()}.
+	 */
+	long clientSubnet(int index) {
+		if (index < 0 || index >= received) throw new IndexOutOfBoundsException(index);
+		var address = receiveNames.asSlice((long) index * SOCKADDR_STORAGE_SIZE, SOCKADDR_STORAGE_SIZE);
+
+		// struct sockaddr_in and sockaddr_in6 are laid out as in socketAddress
+		return Short.toUnsignedInt(address.get(JAVA_SHORT, 0)) == AF_INET
+				? ResponseRateLimiter.ipv4Subnet(address.get(NETWORK_INT, 4))
+				: ResponseRateLimiter.ipv6Subnet(address.get(NETWORK_LONG, 8));
+	}
+
+	/**
+	 * The buffer that the next queued response should be written into.
+	 */
+	MemorySegment responseBuffer() {
+		if (queued >= batchSize) throw new IllegalStateException("Too many responses queued");
+		return sendBuffers.asSlice((long) queued * SEND_BUFFER_SIZE, SEND_BUFFER_SIZE);
+	}
+
+	/**
+	 * Queues a response, written into the start of {@link #responseBuffer()},
+	 * to be sent back to the source of the given request.
+	 */
+	void queueResponse(int requestIndex, long length) {
+		if (requestIndex < 0 || requestIndex >= received) throw new IndexOutOfBoundsException(requestIndex);
+		if (length > SEND_BUFFER_SIZE) throw new IllegalArgumentException("Response too large: " + length);
+
+		var request = receiveHeader(requestIndex);
+		var header = sendHeader(queued);
+		header.set(ADDRESS, MSG_NAME, request.get(ADDRESS, MSG_NAME));
+		header.set(JAVA_INT, MSG_NAMELEN, request.get(JAVA_INT, MSG_NAMELEN));
+
+		var vector = sendVectors.asSlice(queued * IOVEC.byteSize(), IOVEC.byteSize());
+		vector.set(ADDRESS, IOV_BASE, responseBuffer());
+		vector.set(JAVA_LONG, IOV_LEN, length);
+
+		queued++;
+	}
+
+	/**
+	 * Sends every queued response.
+	 * A response the kernel rejects is skipped rather than retried.
+	 *
+	 * @return the number of responses sent
+	 */
+	int flush() throws IOException {
+		int sent = 0;
+		int attempted = 0;
+
+		try {
+			while (attempted < queued) {
+				var remaining = sendHeaders.asSlice(attempted * MMSGHDR.byteSize());
+				int result = (int) Native.SENDMMSG.invokeExact(capturedState, fd, remaining, queued - attempted, 0);
+
+				if (result >= 0) {
+					sent += result;
+					attempted += result;
+				} else if (errno(capturedState) != EINTR) {
+					attempted++; // skip the datagram that failed
+				}
+			}
+		} catch (Throwable e) {
+			throw new IOException("sendmmsg failed", e);
+		} finally {
+			queued = 0;
+		}
+
+		return sent;
+	}
+
+	@Override
+	public void close() {
+		if (isClosed) return;
+		isClosed = true;
+
+		try {
+			int ignored = (int) Native.CLOSE.invokeExact(capturedState, fd);
+		} catch (Throwable e) {
+			// nothing useful to do; the arena is freed regardless
+		} finally {
+			arena.close();
+		}
+	}
+}
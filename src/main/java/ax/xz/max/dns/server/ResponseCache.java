@@ -0,0 +1,239 @@
+package ax.xz.max.dns.server;
+
+import ax.xz.max.dns.resource.DomainName;
+import ax.xz.max.dns.resource.MessageView;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+import static java.nio.ByteOrder.BIG_ENDIAN;
+
+/**
+ * Caches fully serialized responses, so that repeated questions skip resolution and serialization.
+ * A hit only copies the cached bytes and patches in the request's message ID.
+ * <p>
+ * The cache is bounded by the total size of its entries, evicting the oldest first.
+ * It must be {@linkplain #invalidate() invalidated} whenever the underlying records change;
+ * responses resolved across an invalidation are discarded rather than cached.
+ */
+public final class ResponseCache {
+	private static final ValueLayout.OfShort NETWORK_SHORT = JAVA_SHORT.withByteAlignment(1).withOrder(BIG_ENDIAN);
+	private static final int ENTRY_OVERHEAD = 64; // rough size of the key, map node and deque node
+
+	/**
+	 * Everything a cached response depends on, besides the message ID.
+	 * <p>
+	 * The name is compared in wire format, ignoring case, so a key can point straight into a received request.
+	 * Such a key is only good for lookups; it is {@linkplain #detached() copied} before being stored.
+	 */
+	public static final class Key {
+		private final MemorySegment source;
+		private final long nameOffset;
+		private final int nameLength;
+		private final int nameHash;
+		private final short type;
+		private final short classID;
+		private final int payloadSize;
+		private final boolean edns;
+		private final boolean dnssecOk;
+		private final int hash;
+
+		/**
+		 * @param payloadSize the most bytes the response may take
+		 * @param edns whether the client sent an OPT record, and so expects one back
+		 * @param dnssecOk whether the client set the EDNS DO bit
+		 */
+		private Key(MemorySegment source, long nameOffset, int nameLength, int nameHash, short type, short classID, int payloadSize, boolean edns, boolean dnssecOk) {
+			this.source = source;
+			this.nameOffset = nameOffset;
+			this.nameLength = nameLength;
+			this.nameHash = nameHash;
+			this.type = type;
+			this.classID = classID;
+			this.payloadSize = payloadSize;
+			this.edns = edns;
+			this.dnssecOk = dnssecOk;
+			this.hash = ((nameHash * 31 + type) * 31 + classID) * 31 + payloadSize * 4 + (edns ? 2 : 0) + (dnssecOk ? 1 : 0);
+		}
+
+		/**
+		 * A copy of this key that no longer refers to the request it was made from.
+		 */
+		private Key detached() {
+			var name = MemorySegment.ofArray(new byte[nameLength]);
+			name.copyFrom(source.asSlice(nameOffset, nameLength));
+			return new Key(name, 0, nameLength, nameHash, type, classID, payloadSize, edns, dnssecOk);
+		}
+
+		private int byteSize() {
+			return ENTRY_OVERHEAD + nameLength;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Key other
+					&& hash == other.hash
+					&& type == other.type
+					&& classID == other.classID
+					&& payloadSize == other.payloadSize
+					&& edns == other.edns
+					&& dnssecOk == other.dnssecOk
+					&& nameLength == other.nameLength
+					&& DomainName.equalsIgnoreCase(source, nameOffset, other.source, other.nameOffset, nameLength);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	private static final int ANSWER_COUNT_OFFSET = 6;
+
+	private final long maxBytes;
+	private final ConcurrentHashMap<Key, byte[]> entries = new ConcurrentHashMap<>();
+	private final ConcurrentLinkedDeque<Key> insertionOrder = new ConcurrentLinkedDeque<>();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong generation = new AtomicLong();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	ResponseCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * A cache with no capacity never stores anything, so lookups can be skipped.
+	 */
+	boolean isEnabled() {
+		return maxBytes > 0;
+	}
+
+	/**
+	 * The key for a request, or {@code null} if its response should not be cached.
+	 * The key refers to the request's segment, and is only valid while that is.
+	 */
+	static Key keyFor(MessageView request, int payloadSize, boolean edns, boolean dnssecOk) {
+		if (request.isResponse() || request.opcode() != 0 || request.numQuestions() != 1 || !request.hasQuestion())
+			return null;
+
+		return new Key(
+				request.segment(),
+				request.questionNameOffset(),
+				request.questionNameLength(),
+				request.questionNameHash(),
+				request.questionType(),
+				request.questionClass(),
+				payloadSize,
+				edns,
+				dnssecOk
+		);
+	}
+
+	/**
+	 * Marks the start of a resolution whose response may later be {@linkplain #put cached}.
+	 */
+	long generation() {
+		return generation.get();
+	}
+
+	/**
+	 * Finds a cached response. It must not be modified; use {@link #copyInto} to send it.
+	 *
+	 * @return the response, or {@code null} on a miss
+	 */
+	byte[] get(Key key) {
+		byte[] response = entries.get(key);
+		if (response == null) misses.increment();
+		else hits.increment();
+		return response;
+	}
+
+	/**
+	 * Copies a cached response to the start of a buffer, with its ID and question name replaced by the request's,
+	 * so that the name keeps the case the client sent it in.
+	 * A response larger than the buffer is copied to the heap instead.
+	 *
+	 * @param request the request the response was found for, whose question is the same but for case
+	 */
+	static MemorySegment copyInto(byte[] response, MessageView request, MemorySegment buffer) {
+		MemorySegment segment = response.length <= buffer.byteSize()
+				? buffer.asSlice(0, response.length)
+				: MemorySegment.ofArray(new byte[response.length]);
+		segment.copyFrom(MemorySegment.ofArray(response));
+		segment.set(NETWORK_SHORT, 0, request.id());
+		MemorySegment.copy(request.segment(), request.questionNameOffset(), segment, request.questionNameOffset(), request.questionNameLength());
+		return segment;
+	}
+
+	/**
+	 * Caches a response, unless the cache was invalidated since {@code generation} was read.
+	 */
+	void put(Key key, MemorySegment response, long generation) {
+		if (response.byteSize() + key.byteSize() > maxBytes) return;
+
+		byte[] data = response.toArray(ValueLayout.JAVA_BYTE);
+		if (this.generation.get() != generation) return;
+
+		key = key.detached();
+		if (entries.putIfAbsent(key, data) == null) {
+			insertionOrder.addLast(key);
+			bytes.addAndGet(data.length + key.byteSize());
+			trimOldest();
+
+			// an invalidation may have cleared the map just before we inserted
+			if (this.generation.get() != generation)
+				invalidate();
+		}
+	}
+
+	/**
+	 * Whether a cached response has any answers.
+	 */
+	static boolean hasAnswers(byte[] response) {
+		return response[ANSWER_COUNT_OFFSET] != 0 || response[ANSWER_COUNT_OFFSET + 1] != 0;
+	}
+
+	private void trimOldest() {
+		while (bytes.get() > maxBytes) {
+			var key = insertionOrder.poll();
+			if (key == null) break; // protects from race condition
+
+			var removed = entries.remove(key);
+			if (removed != null)
+				bytes.addAndGet(-(removed.length + key.byteSize()));
+		}
+	}
+
+	/**
+	 * Discards every cached response.
+	 */
+	public void invalidate() {
+		generation.incrementAndGet();
+		insertionOrder.clear();
+		entries.clear();
+		bytes.set(0); // shouldn't drift, since racing inserts re-invalidate
+	}
+
+	public long hits() {
+		return hits.sum();
+	}
+
+	public long misses() {
+		return misses.sum();
+	}
+
+	public long byteSize() {
+		return bytes.get();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+}
@@ -0,0 +1,139 @@
+package ax.xz.max.dns.server;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the rate of UDP responses to each client subnet, to blunt reflection attacks.
+ * <p>
+ * Clients are grouped by /24 for IPv4 and /56 for IPv6, and limited separately for each {@link ResponseClass}.
+ * Each group has a token bucket, kept as a theoretical arrival time (the generic cell rate algorithm),
+ * so that a bucket fits into a single {@code long} alongside a tag identifying its group.
+ * <p>
+ * Buckets live in a fixed-size table and are updated with compare-and-set, so checking never locks or allocates.
+ * Groups whose hashes collide replace each other's buckets, which only ever makes the limiter more lenient.
+ */
+public final class ResponseRateLimiter {
+	public enum ResponseClass {
+		/** A response with answers */
+		ANSWER,
+		/** A successful response without answers */
+		EMPTY,
+		/** A response with a non-zero response code */
+		ERROR
+	}
+
+	public enum Verdict {
+		/** Send the response as usual */
+		SEND,
+		/** Send a truncated response instead, so that a genuine client retries over TCP */
+		SLIP,
+		/** Send nothing */
+		DROP
+	}
+
+	private static final int TAG_SHIFT = 48;
+	private static final long TIME_MASK = (1L << TAG_SHIFT) - 1; // microseconds; lasts nearly nine years
+
+	private final AtomicLongArray buckets;
+	private final long intervalMicros;
+	private final long toleranceMicros;
+	private final int slip;
+	private final long epochNanos = System.nanoTime();
+
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder slipped = new LongAdder();
+
+	/**
+	 * @param responsesPerSecond the sustained rate allowed for each subnet and response class
+	 * @param burst the most responses allowed at once, after a quiet period
+	 * @param slip every how many limited responses is sent truncated instead of dropped, on average; 0 never sends any
+	 * @param tableSize the number of buckets; a power of two
+	 */
+	ResponseRateLimiter(int responsesPerSecond, int burst, int slip, int tableSize) {
+		this.buckets = new AtomicLongArray(tableSize);
+		this.intervalMicros = Math.max(1, 1_000_000 / responsesPerSecond);
+		this.toleranceMicros = intervalMicros * (burst - 1);
+		this.slip = slip;
+	}
+
+	/**
+	 * Identifies the subnet of an IPv4 address, given in network byte order.
+	 */
+	static long ipv4Subnet(int address) {
+		return (4L << 60) | ((address >>> 8) & 0xFF_FFFFL);
+	}
+
+	/**
+	 * Identifies the subnet of an IPv6 address, given its first eight bytes in network byte order.
+	 */
+	static long ipv6Subnet(long prefix) {
+		return (6L << 60) | (prefix >>> 8);
+	}
+
+	static long subnetOf(InetAddress address) {
+		byte[] bytes = address.getAddress();
+		long prefix = 0;
+		for (int i = 0; i < Math.min(bytes.length, 8); i++)
+			prefix = (prefix << 8) | Byte.toUnsignedLong(bytes[i]);
+
+		return address instanceof Inet4Address
+				? ipv4Subnet((int) prefix)
+				: ipv6Subnet(prefix);
+	}
+
+	private static long mix(long value) {
+		// the finalizer of MurmurHash3
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb3fe1a85ec53L;
+		value ^= value >>> 33;
+		return value;
+	}
+
+	/**
+	 * Takes a token for a response, and decides what to do if there was none.
+	 */
+	Verdict check(long subnet, ResponseClass responseClass) {
+		long hash = mix(subnet * 31 + responseClass.ordinal());
+		int index = (int) hash & (buckets.length() - 1);
+		long tag = hash >>> TAG_SHIFT;
+		long now = (System.nanoTime() - epochNanos) / 1000;
+
+		while (true) {
+			long bucket = buckets.get(index);
+			long arrival = (bucket >>> TAG_SHIFT) == tag ? bucket & TIME_MASK : now;
+			if (arrival < now) arrival = now;
+
+			if (arrival - now > toleranceMicros)
+				return limited();
+
+			if (buckets.compareAndSet(index, bucket, (tag << TAG_SHIFT) | ((arrival + intervalMicros) & TIME_MASK)))
+				return Verdict.SEND;
+		}
+	}
+
+	private Verdict limited() {
+		if (slip > 0 && ThreadLocalRandom.current().nextInt(slip) == 0) {
+			slipped.increment();
+			return Verdict.SLIP;
+		}
+
+		dropped.increment();
+		return Verdict.DROP;
+	}
+
+	/** Responses dropped for exceeding the limit */
+	public long dropped() {
+		return dropped.sum();
+	}
+
+	/** Responses sent truncated for exceeding the limit */
+	public long slipped() {
+		return slipped.sum();
+	}
+}
@@ -0,0 +1,474 @@
+package ax.xz.max.dns.server;
+
+import ax.xz.max.dns.resource.DNSWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serves DNS over TCP by multiplexing every connection onto a few {@link Selector} loops,
+ * instead of dedicating a task to each connection.
+ * <p>
+ * A connection only holds a pooled buffer while a frame is being read or a response is waiting to be written,
+ * so memory use follows active traffic rather than the number of open sockets.
+ * Queries are resolved on the given executor and, as with the thread-per-connection engine,
+ * answered in completion order with at most {@link ServerConfiguration#tcpMaxInFlight()} outstanding per connection.
+ * A query that can't be answered, such as a malformed one, closes the connection once the others read so far are answered.
+ * <p>
+ * Connections are closed when idle for {@link ServerConfiguration#tcpIdleTimeout()},
+ * or when a frame is not fully received within {@link ServerConfiguration#tcpReadTimeout()} of its first byte.
+ * New connections beyond {@link ServerConfiguration#tcpMaxConnections()} in total,
+ * or {@link ServerConfiguration#tcpMaxConnectionsPerSource()} from one address, are closed immediately.
+ */
+final class SelectorTcpEngine implements AutoCloseable {
+	@FunctionalInterface
+	interface Responder {
+		MemorySegment respond(MemorySegment request, int type, MemorySegment buffer, DNSWriter writer) throws Exception;
+	}
+
+	private static final long SWEEP_INTERVAL_MILLIS = 250;
+
+	private final Logger logger = LoggerFactory.getLogger(SelectorTcpEngine.class);
+	private final ExecutorService executor;
+	private final BufferPool bufferPool;
+	private final ServerMetrics metrics;
+	private final Responder responder;
+
+	private final int maxInFlight;
+	private final long idleTimeoutNanos;
+	private final long readTimeoutNanos;
+	private final int maxConnections;
+	private final int maxConnectionsPerSource;
+
+	private final EventLoop[] loops;
+	private final List<Thread> threads = new ArrayList<>();
+	private int nextLoop = 0; // only used by the accepting loop
+
+	private final AtomicInteger connections = new AtomicInteger();
+	private final ConcurrentHashMap<InetAddress, Integer> connectionsPerSource = new ConcurrentHashMap<>();
+	private final LongAdder rejectedConnections = new LongAdder();
+	private volatile boolean isClosed = false;
+
+	SelectorTcpEngine(ServerConfiguration configuration, ExecutorService executor, BufferPool bufferPool, ServerMetrics metrics, Responder responder) throws IOException {
+		this.executor = executor;
+		this.bufferPool = bufferPool;
+		this.metrics = metrics;
+		this.responder = responder;
+
+		this.maxInFlight = configuration.tcpMaxInFlight();
+		this.idleTimeoutNanos = configuration.tcpIdleTimeout().toNanos();
+		this.readTimeoutNanos = configuration.tcpReadTimeout().toNanos();
+		this.maxConnections = configuration.tcpMaxConnections();
+		this.maxConnectionsPerSource = configuration.tcpMaxConnectionsPerSource();
+
+		this.loops = new EventLoop[configuration.tcpSelectorThreads()];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop(Selector.open());
+			threads.add(Thread.ofPlatform().name("dns-tcp-selector-" + i).daemon().start(loops[i]));
+		}
+	}
+
+	/**
+	 * Starts accepting connections on the given address.
+	 */
+	void bind(InetSocketAddress address) throws IOException {
+		var serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.configureBlocking(false);
+			serverChannel.bind(address);
+		} catch (IOException e) {
+			serverChannel.close();
+			throw e;
+		}
+
+		var loop = loops[0];
+		loop.execute(() -> {
+			try {
+				serverChannel.register(loop.selector, SelectionKey.OP_ACCEPT);
+				logger.info("TCP Selector Server started on " + address);
+			} catch (IOException e) {
+				logger.error("Error while registering TCP server", e);
+				closeQuietly(serverChannel);
+			}
+		});
+	}
+
+	int activeConnections() {
+		return connections.get();
+	}
+
+	long rejectedConnections() {
+		return rejectedConnections.sum();
+	}
+
+	private boolean admit(InetAddress source) {
+		if (connections.incrementAndGet() > maxConnections) {
+			connections.decrementAndGet();
+			return false;
+		}
+
+		if (connectionsPerSource.merge(source, 1, Integer::sum) > maxConnectionsPerSource) {
+			release(source);
+			return false;
+		}
+
+		return true;
+	}
+
+	private void release(InetAddress source) {
+		connections.decrementAndGet();
+		connectionsPerSource.computeIfPresent(source, (__, count) -> count > 1 ? count - 1 : null);
+	}
+
+	private void accept(ServerSocketChannel serverChannel) throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			InetAddress source;
+			try {
+				source = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+			} catch (IOException e) {
+				closeQuietly(channel);
+				continue;
+			}
+
+			if (!admit(source)) {
+				rejectedConnections.increment();
+				closeQuietly(channel);
+				continue;
+			}
+
+			var loop = loops[nextLoop];
+			nextLoop = (nextLoop + 1) % loops.length;
+
+			var accepted = channel;
+			loop.execute(() -> loop.register(accepted, source));
+		}
+	}
+
+	private static void closeQuietly(Channel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+
+	@Override
+	public void close() {
+		if (isClosed) return;
+		isClosed = true;
+
+		for (var loop : loops)
+			loop.selector.wakeup();
+
+		for (var thread : threads) {
+			try {
+				thread.join(TimeUnit.SECONDS.toMillis(5));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+	}
+
+	/** A single selector, and the connections registered with it. */
+	private final class EventLoop implements Runnable {
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+		private EventLoop(Selector selector) {
+			this.selector = selector;
+		}
+
+		/** Runs a task on this loop's thread. */
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		void register(SocketChannel channel, InetAddress source) {
+			try {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				var connection = new Connection(this, channel, source);
+				connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+			} catch (IOException e) {
+				release(source);
+				closeQuietly(channel);
+			}
+		}
+
+		@Override
+		public void run() {
+			long nextSweep = System.nanoTime();
+
+			while (!isClosed) {
+				try {
+					selector.select(SWEEP_INTERVAL_MILLIS);
+				} catch (IOException e) {
+					logger.error("Error while selecting TCP connections", e);
+					break;
+				}
+
+				Runnable task;
+				while ((task = tasks.poll()) != null)
+					task.run();
+
+				for (var iterator = selector.selectedKeys().iterator(); iterator.hasNext(); ) {
+					var key = iterator.next();
+					iterator.remove();
+					handle(key);
+				}
+
+				long now = System.nanoTime();
+				if (now - nextSweep >= 0) {
+					sweep(now);
+					nextSweep = now + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MILLIS);
+				}
+			}
+
+			for (var key : selector.keys()) {
+				if (key.attachment() instanceof Connection connection) connection.close();
+				else closeQuietly(key.channel());
+			}
+
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+
+		private void handle(SelectionKey key) {
+			if (!key.isValid()) return;
+
+			if (key.attachment() instanceof Connection connection) {
+				try {
+					if (key.isReadable()) connection.onReadable();
+					if (key.isValid() && key.isWritable()) connection.flushWrites();
+				} catch (Exception e) {
+					logger.debug("Closing TCP connection after error", e);
+					connection.close();
+				}
+			} else {
+				try {
+					if (key.isAcceptable()) accept((ServerSocketChannel) key.channel());
+				} catch (IOException e) {
+					logger.error("Error while accepting TCP connection", e);
+				}
+			}
+		}
+
+		/** Closes connections that are idle or have stalled mid-frame. */
+		private void sweep(long now) {
+			for (var key : selector.keys()) {
+				if (!(key.attachment() instanceof Connection connection)) continue;
+
+				if (connection.frameStartNanos >= 0 && now - connection.frameStartNanos > readTimeoutNanos)
+					connection.close();
+				else if (connection.inFlight == 0 && now - connection.lastActivityNanos > idleTimeoutNanos)
+					connection.close();
+			}
+		}
+	}
+
+	/**
+	 * A response that has been serialized but not yet fully written.
+	 *
+	 * @param startNanos when the request started being answered
+	 * @param readyNanos when the response was serialized
+	 */
+	private record PendingWrite(ByteBuffer[] buffers, BufferPool.PooledBuffer responseBuffer, int type, long startNanos, long readyNanos) {
+		boolean hasRemaining() {
+			for (var buffer : buffers)
+				if (buffer.hasRemaining()) return true;
+			return false;
+		}
+	}
+
+	/** The state of one connection. Only accessed from its loop's thread. */
+	private final class Connection {
+		private final EventLoop loop;
+		private final SocketChannel channel;
+		private final InetAddress source;
+		private SelectionKey key;
+
+		private final ByteBuffer lengthBuffer = ByteBuffer.allocate(2);
+		private BufferPool.PooledBuffer frame = null; // only held while a frame is being read
+		private ByteBuffer frameBuffer = null;
+
+		private final ArrayDeque<PendingWrite> writes = new ArrayDeque<>();
+		private int inFlight = 0;
+		private boolean inputClosed = false;
+		private boolean isClosed = false;
+
+		private long lastActivityNanos = System.nanoTime();
+		private long frameStartNanos = -1; // -1 when not inside a frame
+
+		private Connection(EventLoop loop, SocketChannel channel, InetAddress source) {
+			this.loop = loop;
+			this.channel = channel;
+			this.source = source;
+		}
+
+		void onReadable() throws IOException {
+			long now = System.nanoTime();
+			lastActivityNanos = now;
+
+			while (inFlight < maxInFlight) {
+				if (frameBuffer == null) {
+					if (channel.read(lengthBuffer) < 0) {
+						onEndOfStream();
+						return;
+					}
+					if (lengthBuffer.position() > 0 && frameStartNanos < 0) frameStartNanos = now;
+					if (lengthBuffer.hasRemaining()) return;
+
+					lengthBuffer.flip();
+					int length = Short.toUnsignedInt(lengthBuffer.getShort());
+					lengthBuffer.clear();
+
+					frame = bufferPool.acquire(length);
+					frameBuffer = frame.segment().asSlice(0, length).asByteBuffer();
+				}
+
+				if (channel.read(frameBuffer) < 0) {
+					onEndOfStream();
+					return;
+				}
+				if (frameBuffer.hasRemaining()) return;
+
+				dispatch(frame, frameBuffer.capacity());
+				frame = null;
+				frameBuffer = null;
+				frameStartNanos = -1;
+			}
+
+			// too many queries outstanding; stop reading until some are answered
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+
+		private void onEndOfStream() {
+			inputClosed = true;
+			if (frameStartNanos >= 0 || (inFlight == 0 && writes.isEmpty())) {
+				close();
+				return;
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+
+		private void dispatch(BufferPool.PooledBuffer request, int length) {
+			inFlight++;
+			var requestSegment = request.segment().asSlice(0, length);
+
+			executor.submit(() -> {
+				PendingWrite write = null;
+				try (request) {
+					long start = System.nanoTime();
+					int type = ServerMetrics.questionType(requestSegment);
+
+					var responseBuffer = bufferPool.acquire();
+					try {
+						var response = responder.respond(requestSegment, type, responseBuffer.segment(), responseBuffer.writer());
+						var lengthPrefix = ByteBuffer.allocate(2).putShort((short) response.byteSize()).flip();
+						write = new PendingWrite(new ByteBuffer[] {lengthPrefix, response.asByteBuffer()}, responseBuffer, type, start, System.nanoTime());
+					} catch (Exception e) {
+						responseBuffer.close();
+						throw e;
+					}
+				} catch (Exception e) {
+					logger.debug("Failed to answer TCP query", e);
+				}
+
+				var completed = write; // null if the query couldn't be answered
+				loop.execute(() -> onResponse(completed));
+			});
+		}
+
+		private void onResponse(PendingWrite write) {
+			inFlight--;
+
+			if (isClosed) {
+				if (write != null) write.responseBuffer().close();
+				return;
+			}
+
+			try {
+				if (write != null) {
+					writes.add(write);
+					flushWrites();
+				} else {
+					// the client would wait forever for this answer, so answer the queries already read, then close
+					inputClosed = true;
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+				}
+
+				if (isClosed) return;
+				if (inputClosed) {
+					if (inFlight == 0 && writes.isEmpty()) close();
+				} else if (inFlight < maxInFlight) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+				}
+			} catch (Exception e) {
+				logger.debug("Closing TCP connection after error", e);
+				close();
+			}
+		}
+
+		void flushWrites() throws IOException {
+			while (!writes.isEmpty()) {
+				var write = writes.peek();
+				if (channel.write(write.buffers()) > 0)
+					lastActivityNanos = System.nanoTime();
+
+				if (write.hasRemaining()) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+
+				writes.poll();
+				write.responseBuffer().close();
+
+				long sent = System.nanoTime();
+				metrics.record(ServerMetrics.Protocol.TCP, ServerMetrics.Stage.SEND, write.type(), sent - write.readyNanos());
+				metrics.record(ServerMetrics.Protocol.TCP, ServerMetrics.Stage.TOTAL, write.type(), sent - write.startNanos());
+			}
+
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			if (inputClosed && inFlight == 0) close();
+		}
+
+		void close() {
+			if (isClosed) return;
+			isClosed = true;
+
+			if (key != null) key.cancel();
+			closeQuietly(channel);
+			release(source);
+
+			if (frame != null) frame.close();
+			frame = null;
+			frameBuffer = null;
+
+			for (var write : writes)
+				write.responseBuffer().close();
+			writes.clear();
+		}
+	}
+}
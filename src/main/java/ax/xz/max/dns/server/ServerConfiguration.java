@@ -0,0 +1,364 @@
+package ax.xz.max.dns.server;
+
+import java.time.Duration;
+
+/**
+ * Tunables for a {@link DNSServer}.
+ *
+ * @param udpShards number of UDP listeners bound to each address with SO_REUSEPORT
+ * @param shardReportInterval how often per-shard query rates are logged; {@link Duration#ZERO} disables reporting
+ * @param udpQueueDepth number of received datagrams each shard buffers for its workers
+ * @param udpWorkers number of virtual-thread workers answering the datagrams of each shard
+ * @param udpOverflowPolicy what a shard does with a datagram when its queue is full
+ * @param udpTransport how UDP shards exchange datagrams with the kernel
+ * @param udpBatchSize maximum number of datagrams received or sent per system call by the {@link Transport#NATIVE} transport
+ * @param bufferSize size of each pooled request and response buffer; larger messages use temporary heap buffers
+ * @param maxPooledBuffers the most buffers the pool allocates, bounding its native memory to {@code bufferSize * maxPooledBuffers}
+ * @param tcpMaxInFlight the most queries resolved concurrently for a single TCP connection
+ * @param tcpEngine how TCP connections are served
+ * @param tcpSelectorThreads number of selector loops used by the {@link TcpEngine#SELECTOR} engine
+ * @param tcpIdleTimeout how long a {@link TcpEngine#SELECTOR} connection may sit idle before it is closed
+ * @param tcpReadTimeout how long a {@link TcpEngine#SELECTOR} connection may take to send a frame once it has started
+ * @param tcpMaxConnections the most concurrent TCP connections accepted, by either engine; connections beyond it are closed when accepted
+ * @param tcpMaxConnectionsPerSource the most concurrent connections the {@link TcpEngine#SELECTOR} engine accepts from one client address
+ * @param responseCacheBytes the most memory used by cached serialized responses; 0 disables the cache
+ * @param metricsReportInterval how often latency percentiles are logged; {@link Duration#ZERO} disables reporting
+ * @param rrlResponsesPerSecond the UDP responses allowed per second to each client subnet and response class; 0 disables rate limiting
+ * @param rrlBurst the most responses a rate-limited client subnet may receive at once
+ * @param rrlSlip on average, one in this many rate-limited responses is sent truncated rather than dropped; 0 drops them all
+ * @param rrlTableSize the number of rate-limiting buckets, which bounds the limiter's memory
+ * @param admissionMaxConcurrency the most queries resolved against the repository at once, beyond which queries are shed; 0, the default, disables admission control
+ * @param admissionMinConcurrency the lowest the adaptive concurrency limit may fall, if below the maximum
+ * @param admissionTargetLatency the lookup latency the concurrency limit adapts to; {@link Duration#ZERO} keeps the limit fixed at its maximum
+ * @param ednsMaxPayloadSize the largest UDP response sent to EDNS clients, whatever larger size they advertise
+ * @param minimalResponses whether positive answers leave out the authority and additional sections
+ */
+public record ServerConfiguration(
+		int udpShards,
+		Duration shardReportInterval,
+		int udpQueueDepth,
+		int udpWorkers,
+		OverflowPolicy udpOverflowPolicy,
+		Transport udpTransport,
+		int udpBatchSize,
+		int bufferSize,
+		int maxPooledBuffers,
+		int tcpMaxInFlight,
+		TcpEngine tcpEngine,
+		int tcpSelectorThreads,
+		Duration tcpIdleTimeout,
+		Duration tcpReadTimeout,
+		int tcpMaxConnections,
+		int tcpMaxConnectionsPerSource,
+		long responseCacheBytes,
+		Duration metricsReportInterval,
+		int rrlResponsesPerSecond,
+		int rrlBurst,
+		int rrlSlip,
+		int rrlTableSize,
+		int admissionMaxConcurrency,
+		int admissionMinConcurrency,
+		Duration admissionTargetLatency,
+		int ednsMaxPayloadSize,
+		boolean minimalResponses
+) {
+	public static final ServerConfiguration DEFAULT = new Builder().build();
+
+	public ServerConfiguration {
+		if (udpShards < 1) throw new IllegalArgumentException("Must have at least one UDP shard: " + udpShards);
+		if (shardReportInterval.isNegative()) throw new IllegalArgumentException("Negative report interval: " + shardReportInterval);
+		if (udpQueueDepth < 1) throw new IllegalArgumentException("UDP queue depth must be positive: " + udpQueueDepth);
+		if (udpWorkers < 1) throw new IllegalArgumentException("Must have at least one UDP worker: " + udpWorkers);
+		if (udpBatchSize < 1) throw new IllegalArgumentException("UDP batch size must be positive: " + udpBatchSize);
+		if (bufferSize < 512) throw new IllegalArgumentException("Buffers must hold at least 512 bytes: " + bufferSize);
+		if (maxPooledBuffers < 0) throw new IllegalArgumentException("Negative buffer pool size: " + maxPooledBuffers);
+		if (tcpMaxInFlight < 1) throw new IllegalArgumentException("Must allow at least one TCP query in flight: " + tcpMaxInFlight);
+		if (tcpSelectorThreads < 1) throw new IllegalArgumentException("Must have at least one selector thread: " + tcpSelectorThreads);
+		if (!tcpIdleTimeout.isPositive()) throw new IllegalArgumentException("TCP idle timeout must be positive: " + tcpIdleTimeout);
+		if (!tcpReadTimeout.isPositive()) throw new IllegalArgumentException("TCP read timeout must be positive: " + tcpReadTimeout);
+		if (tcpMaxConnections < 1) throw new IllegalArgumentException("Must allow at least one TCP connection: " + tcpMaxConnections);
+		if (tcpMaxConnectionsPerSource < 1) throw new IllegalArgumentException("Must allow at least one TCP connection per source: " + tcpMaxConnectionsPerSource);
+		if (responseCacheBytes < 0) throw new IllegalArgumentException("Negative response cache size: " + responseCacheBytes);
+		if (metricsReportInterval.isNegative()) throw new IllegalArgumentException("Negative report interval: " + metricsReportInterval);
+		if (rrlResponsesPerSecond < 0) throw new IllegalArgumentException("Negative response rate: " + rrlResponsesPerSecond);
+		if (rrlBurst < 1) throw new IllegalArgumentException("Burst must be at least 1: " + rrlBurst);
+		if (rrlSlip < 0) throw new IllegalArgumentException("Negative slip: " + rrlSlip);
+		if (rrlTableSize < 1 || Integer.bitCount(rrlTableSize) != 1) throw new IllegalArgumentException("Table size must be a power of two: " + rrlTableSize);
+		if (admissionMaxConcurrency < 0) throw new IllegalArgumentException("Negative concurrency limit: " + admissionMaxConcurrency);
+		if (admissionMinConcurrency < 1) throw new IllegalArgumentException("Minimum concurrency limit must be at least 1: " + admissionMinConcurrency);
+		if (admissionTargetLatency.isNegative()) throw new IllegalArgumentException("Negative target latency: " + admissionTargetLatency);
+		if (ednsMaxPayloadSize < 512 || ednsMaxPayloadSize > 65535) throw new IllegalArgumentException("EDNS payload size must be between 512 and 65535 bytes: " + ednsMaxPayloadSize);
+	}
+
+	/**
+	 * Decides which datagram is discarded when a shard's queue is full.
+	 * Either way, the client times out and retries.
+	 */
+	public enum OverflowPolicy {
+		/** Discard the datagram that was just received. */
+		DROP_NEWEST,
+		/** Discard the datagram that has waited the longest, and queue the new one. */
+		DROP_OLDEST,
+	}
+
+	public enum Transport {
+		/** One {@link java.nio.channels.DatagramChannel} call per datagram, with a receive loop feeding a pool of workers. */
+		NIO,
+		/**
+		 * Batched {@code recvmmsg}/{@code sendmmsg} on Linux, answering each batch inline on a platform thread.
+		 * Falls back to {@link #NIO} where unavailable.
+		 */
+		NATIVE,
+	}
+
+	public enum TcpEngine {
+		/** Each connection is served by its own virtual thread, up to {@code tcpMaxConnections} connections, without timeouts. */
+		THREAD_PER_CONNECTION,
+		/** Connections are multiplexed onto a few selector loops, with connection caps and timeouts. */
+		SELECTOR,
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * @return a builder starting from this configuration
+	 */
+	public Builder toBuilder() {
+		var builder = new Builder();
+		builder.udpShards = udpShards;
+		builder.shardReportInterval = shardReportInterval;
+		builder.udpQueueDepth = udpQueueDepth;
+		builder.udpWorkers = udpWorkers;
+		builder.udpOverflowPolicy = udpOverflowPolicy;
+		builder.udpTransport = udpTransport;
+		builder.udpBatchSize = udpBatchSize;
+		builder.bufferSize = bufferSize;
+		builder.maxPooledBuffers = maxPooledBuffers;
+		builder.tcpMaxInFlight = tcpMaxInFlight;
+		builder.tcpEngine = tcpEngine;
+		builder.tcpSelectorThreads = tcpSelectorThreads;
+		builder.tcpIdleTimeout = tcpIdleTimeout;
+		builder.tcpReadTimeout = tcpReadTimeout;
+		builder.tcpMaxConnections = tcpMaxConnections;
+		builder.tcpMaxConnectionsPerSource = tcpMaxConnectionsPerSource;
+		builder.responseCacheBytes = responseCacheBytes;
+		builder.metricsReportInterval = metricsReportInterval;
+		builder.rrlResponsesPerSecond = rrlResponsesPerSecond;
+		builder.rrlBurst = rrlBurst;
+		builder.rrlSlip = rrlSlip;
+		builder.rrlTableSize = rrlTableSize;
+		builder.admissionMaxConcurrency = admissionMaxConcurrency;
+		builder.admissionMinConcurrency = admissionMinConcurrency;
+		builder.admissionTargetLatency = admissionTargetLatency;
+		builder.ednsMaxPayloadSize = ednsMaxPayloadSize;
+		builder.minimalResponses = minimalResponses;
+		return builder;
+	}
+
+	/**
+	 * Builds a configuration, starting from the {@linkplain #DEFAULT defaults}.
+	 */
+	public static final class Builder {
+		private int udpShards = 1;
+		private Duration shardReportInterval = Duration.ZERO;
+		private int udpQueueDepth = 1024;
+		private int udpWorkers = 64;
+		private OverflowPolicy udpOverflowPolicy = OverflowPolicy.DROP_NEWEST;
+		private Transport udpTransport = Transport.NIO;
+		private int udpBatchSize = 32;
+		private int bufferSize = 4096;
+		private int maxPooledBuffers = 1024;
+		private int tcpMaxInFlight = 16;
+		private TcpEngine tcpEngine = TcpEngine.THREAD_PER_CONNECTION;
+		private int tcpSelectorThreads = 2;
+		private Duration tcpIdleTimeout = Duration.ofSeconds(10);
+		private Duration tcpReadTimeout = Duration.ofSeconds(5);
+		private int tcpMaxConnections = 4096;
+		private int tcpMaxConnectionsPerSource = 64;
+		private long responseCacheBytes = 16 * 1024 * 1024;
+		private Duration metricsReportInterval = Duration.ZERO;
+		private int rrlResponsesPerSecond = 0;
+		private int rrlBurst = 20;
+		private int rrlSlip = 2;
+		private int rrlTableSize = 65536;
+		private int admissionMaxConcurrency = 0;
+		private int admissionMinConcurrency = 8;
+		private Duration admissionTargetLatency = Duration.ofMillis(50);
+		private int ednsMaxPayloadSize = 1232;
+		private boolean minimalResponses = false;
+
+		private Builder() {}
+
+		public Builder udpShards(int udpShards) {
+			this.udpShards = udpShards;
+			return this;
+		}
+
+		public Builder shardReportInterval(Duration shardReportInterval) {
+			this.shardReportInterval = shardReportInterval;
+			return this;
+		}
+
+		public Builder udpQueueDepth(int udpQueueDepth) {
+			this.udpQueueDepth = udpQueueDepth;
+			return this;
+		}
+
+		public Builder udpWorkers(int udpWorkers) {
+			this.udpWorkers = udpWorkers;
+			return this;
+		}
+
+		public Builder udpOverflowPolicy(OverflowPolicy udpOverflowPolicy) {
+			this.udpOverflowPolicy = udpOverflowPolicy;
+			return this;
+		}
+
+		public Builder udpTransport(Transport udpTransport) {
+			this.udpTransport = udpTransport;
+			return this;
+		}
+
+		public Builder udpBatchSize(int udpBatchSize) {
+			this.udpBatchSize = udpBatchSize;
+			return this;
+		}
+
+		public Builder bufferSize(int bufferSize) {
+			this.bufferSize = bufferSize;
+			return this;
+		}
+
+		public Builder maxPooledBuffers(int maxPooledBuffers) {
+			this.maxPooledBuffers = maxPooledBuffers;
+			return this;
+		}
+
+		public Builder tcpMaxInFlight(int tcpMaxInFlight) {
+			this.tcpMaxInFlight = tcpMaxInFlight;
+			return this;
+		}
+
+		public Builder tcpEngine(TcpEngine tcpEngine) {
+			this.tcpEngine = tcpEngine;
+			return this;
+		}
+
+		public Builder tcpSelectorThreads(int tcpSelectorThreads) {
+			this.tcpSelectorThreads = tcpSelectorThreads;
+			return this;
+		}
+
+		public Builder tcpIdleTimeout(Duration tcpIdleTimeout) {
+			this.tcpIdleTimeout = tcpIdleTimeout;
+			return this;
+		}
+
+		public Builder tcpReadTimeout(Duration tcpReadTimeout) {
+			this.tcpReadTimeout = tcpReadTimeout;
+			return this;
+		}
+
+		public Builder tcpMaxConnections(int tcpMaxConnections) {
+			this.tcpMaxConnections = tcpMaxConnections;
+			return this;
+		}
+
+		public Builder tcpMaxConnectionsPerSource(int tcpMaxConnectionsPerSource) {
+			this.tcpMaxConnectionsPerSource = tcpMaxConnectionsPerSource;
+			return this;
+		}
+
+		public Builder responseCacheBytes(long responseCacheBytes) {
+			this.responseCacheBytes = responseCacheBytes;
+			return this;
+		}
+
+		public Builder metricsReportInterval(Duration metricsReportInterval) {
+			this.metricsReportInterval = metricsReportInterval;
+			return this;
+		}
+
+		public Builder rrlResponsesPerSecond(int rrlResponsesPerSecond) {
+			this.rrlResponsesPerSecond = rrlResponsesPerSecond;
+			return this;
+		}
+
+		public Builder rrlBurst(int rrlBurst) {
+			this.rrlBurst = rrlBurst;
+			return this;
+		}
+
+		public Builder rrlSlip(int rrlSlip) {
+			this.rrlSlip = rrlSlip;
+			return this;
+		}
+
+		public Builder rrlTableSize(int rrlTableSize) {
+			this.rrlTableSize = rrlTableSize;
+			return this;
+		}
+
+		public Builder admissionMaxConcurrency(int admissionMaxConcurrency) {
+			this.admissionMaxConcurrency = admissionMaxConcurrency;
+			return this;
+		}
+
+		public Builder admissionMinConcurrency(int admissionMinConcurrency) {
+			this.admissionMinConcurrency = admissionMinConcurrency;
+			return this;
+		}
+
+		public Builder admissionTargetLatency(Duration admissionTargetLatency) {
+			this.admissionTargetLatency = admissionTargetLatency;
+			return this;
+		}
+
+		public Builder ednsMaxPayloadSize(int ednsMaxPayloadSize) {
+			this.ednsMaxPayloadSize = ednsMaxPayloadSize;
+			return this;
+		}
+
+		public Builder minimalResponses(boolean minimalResponses) {
+			this.minimalResponses = minimalResponses;
+			return this;
+		}
+
+		/**
+		 * @throws IllegalArgumentException if any option is out of range
+		 */
+		public ServerConfiguration build() {
+			return new ServerConfiguration(
+					udpShards,
+					shardReportInterval,
+					udpQueueDepth,
+					udpWorkers,
+					udpOverflowPolicy,
+					udpTransport,
+					udpBatchSize,
+					bufferSize,
+					maxPooledBuffers,
+					tcpMaxInFlight,
+					tcpEngine,
+					tcpSelectorThreads,
+					tcpIdleTimeout,
+					tcpReadTimeout,
+					tcpMaxConnections,
+					tcpMaxConnectionsPerSource,
+					responseCacheBytes,
+					metricsReportInterval,
+					rrlResponsesPerSecond,
+					rrlBurst,
+					rrlSlip,
+					rrlTableSize,
+					admissionMaxConcurrency,
+					admissionMinConcurrency,
+					admissionTargetLatency,
+					ednsMaxPayloadSize,
+					minimalResponses
+			);
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package ax.xz.max.dns.server;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+import static java.nio.ByteOrder.BIG_ENDIAN;
+
+/**
+ * Latency histograms for each stage of answering a query, split by protocol and question type,
+ * and response counts split by protocol and response code.
+ * <p>
+ * Histograms are created on first use, so only the combinations actually seen take memory.
+ * Question types above 255 share a single histogram, as do unreadable questions.
+ */
+public final class ServerMetrics {
+	private static final ValueLayout.OfShort NETWORK_SHORT = JAVA_SHORT.withByteAlignment(1).withOrder(BIG_ENDIAN);
+
+	public enum Protocol {UDP, TCP}
+
+	public enum Stage {
+		/** Decoding the request */
+		PARSE,
+		/** Resolving the answer from the repository, or finding it in the response cache */
+		LOOKUP,
+		/** Encoding the response */
+		SERIALIZE,
+		/** From a serialized response until it is written to the socket; batched sends are split evenly across their datagrams */
+		SEND,
+		/** From the start of parsing until the response is sent */
+		TOTAL
+	}
+
+	/** The question type recorded for a message whose question can't be read */
+	public static final int UNKNOWN_TYPE = -1;
+
+	private static final int STAGES = Stage.values().length;
+	private static final int TYPE_SLOTS = 257; // one per type up to 255, plus one for the rest
+	private static final int OTHER_TYPES = TYPE_SLOTS - 1;
+
+	/** The response codes counted separately; the header's four bits, plus the lower extended codes such as BADVERS */
+	static final int RESPONSE_CODES = 32;
+
+	private final AtomicReferenceArray<LatencyHistogram> histograms =
+			new AtomicReferenceArray<>(Protocol.values().length * STAGES * TYPE_SLOTS);
+	private final LongAdder[] responses = new LongAdder[Protocol.values().length * RESPONSE_CODES];
+
+	ServerMetrics() {
+		for (int i = 0; i < responses.length; i++)
+			responses[i] = new LongAdder();
+	}
+
+	private static int indexOf(Protocol protocol, Stage stage, int slot) {
+		return (protocol.ordinal() * STAGES + stage.ordinal()) * TYPE_SLOTS + slot;
+	}
+
+	private static int slotOf(int type) {
+		return type >= 0 && type < OTHER_TYPES ? type : OTHER_TYPES;
+	}
+
+	void record(Protocol protocol, Stage stage, int type, long nanos) {
+		int index = indexOf(protocol, stage, slotOf(type));
+
+		var histogram = histograms.get(index);
+		if (histogram == null) {
+			histograms.compareAndSet(index, null, new LatencyHistogram());
+			histogram = histograms.get(index);
+		}
+		histogram.record(nanos);
+	}
+
+	void recordResponse(Protocol protocol, int responseCode) {
+		responses[protocol.ordinal() * RESPONSE_CODES + (responseCode & (RESPONSE_CODES - 1))].increment();
+	}
+
+	/**
+	 * The number of responses sent so far with the given response code.
+	 */
+	public long responses(Protocol protocol, int responseCode) {
+		return responses[protocol.ordinal() * RESPONSE_CODES + (responseCode & (RESPONSE_CODES - 1))].sum();
+	}
+
+	/**
+	 * Reads the type of a message's first question straight from the wire format, without parsing the message.
+	 *
+	 * @return the unsigned question type, or {@link #UNKNOWN_TYPE} if there is no readable question
+	 */
+	static int questionType(MemorySegment message) {
+		if (message.byteSize() < 12 || message.get(NETWORK_SHORT, 4) == 0)
+			return UNKNOWN_TYPE;
+
+		long offset = 12;
+		while (offset < message.byteSize()) {
+			int length = Byte.toUnsignedInt(message.get(JAVA_BYTE, offset));
+			if (length == 0) {
+				offset++;
+				break;
+			}
+			if ((length & 0xC0) != 0) return UNKNOWN_TYPE; // questions are never compressed in requests we answer
+			offset += length + 1;
+		}
+
+		if (offset + 2 > message.byteSize()) return UNKNOWN_TYPE;
+		return Short.toUnsignedInt(message.get(NETWORK_SHORT, offset));
+	}
+
+	/**
+	 * @param type the question type, or {@code null} for every type above 255 and unreadable questions
+	 */
+	public record Series(Protocol protocol, Stage stage, Integer type, LatencyHistogram.Snapshot latency) {}
+
+	/**
+	 * Snapshots every histogram that has recorded anything.
+	 */
+	public List<Series> snapshot() {
+		var series = new ArrayList<Series>();
+		for (var protocol : Protocol.values())
+			for (var stage : Stage.values())
+				for (int slot = 0; slot < TYPE_SLOTS; slot++) {
+					var histogram = histograms.get(indexOf(protocol, stage, slot));
+					if (histogram != null)
+						series.add(new Series(protocol, stage, slot == OTHER_TYPES ? null : slot, histogram.snapshot()));
+				}
+		return series;
+	}
+
+	/**
+	 * Merges the histograms of every question type.
+	 */
+	public LatencyHistogram.Snapshot snapshot(Protocol protocol, Stage stage) {
+		var merged = LatencyHistogram.Snapshot.empty();
+		for (int slot = 0; slot < TYPE_SLOTS; slot++) {
+			var histogram = histograms.get(indexOf(protocol, stage, slot));
+			if (histogram != null)
+				merged = merged.merge(histogram.snapshot());
+		}
+		return merged;
+	}
+}
@@ -0,0 +1,75 @@
+package ax.xz.max.dns.server;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Query and drop counters for a single UDP listener shard.
+ * <p>
+ * The counters are incremented by the shard's receive loop only;
+ * sampling is synchronized so that concurrent reporters see consistent rates.
+ */
+public final class ShardStatistics {
+	private final InetSocketAddress address;
+	private final int shard;
+	private final AtomicLong queries = new AtomicLong();
+	private final AtomicLong drops = new AtomicLong();
+
+	private long lastSampleQueries = 0;
+	private long lastSampleNanos = System.nanoTime();
+
+	ShardStatistics(InetSocketAddress address, int shard) {
+		this.address = address;
+		this.shard = shard;
+	}
+
+	void recordQuery() {
+		queries.incrementAndGet();
+	}
+
+	void recordDrop() {
+		drops.incrementAndGet();
+	}
+
+	public InetSocketAddress address() {
+		return address;
+	}
+
+	public int shard() {
+		return shard;
+	}
+
+	public long totalQueries() {
+		return queries.get();
+	}
+
+	/**
+	 * Number of datagrams discarded because the shard's queue was full.
+	 */
+	public long totalDrops() {
+		return drops.get();
+	}
+
+	/**
+	 * Computes the query rate since the previous call to this method.
+	 */
+	public synchronized Rate sample() {
+		long now = System.nanoTime();
+		long total = queries.get();
+
+		double seconds = (now - lastSampleNanos) / 1e9;
+		double rate = seconds > 0 ? (total - lastSampleQueries) / seconds : 0;
+
+		lastSampleQueries = total;
+		lastSampleNanos = now;
+
+		return new Rate(address, shard, total, drops.get(), rate);
+	}
+
+	public record Rate(InetSocketAddress address, int shard, long totalQueries, long totalDrops, double queriesPerSecond) {
+		@Override
+		public String toString() {
+			return String.format("%s#%d: %.1f qps (%d total, %d dropped)", address, shard, queriesPerSecond, totalQueries, totalDrops);
+		}
+	}
+}